@@ -0,0 +1,107 @@
+#!/usr/bin/env python3
+"""
+Benchmark for the audit writes of the STOMP server.
+
+Starts sql_server.py in a temporary directory (so the real stomp_server.db is not touched)
+and replays the statements of N logins (INSERT INTO users + INSERT INTO login_history),
+the same way Database.java sends them:
+  batch size 1  - every statement is its own message and its own transaction
+  batch size >1 - BATCH messages, one transaction per batch
+
+usage: bench_audit.py [logins] [batch sizes...]
+example: bench_audit.py 5000 1 16 64 256
+"""
+
+import os
+import socket
+import subprocess
+import sys
+import tempfile
+import time
+
+HERE = os.path.dirname(os.path.abspath(__file__))
+PORT = 7779
+
+
+def recv_replies(sock: socket.socket, count: int, pending: bytes = b""):
+    replies = []
+    data = pending
+    while len(replies) < count:
+        chunk = sock.recv(65536)
+        if not chunk:
+            raise ConnectionError("SQL server closed the connection")
+        data += chunk
+        *messages, data = data.split(b"\0")
+        replies.extend(messages)
+    return replies
+
+
+def login_statements(logins: int, run: int) -> list:
+    statements = []
+    for i in range(logins):
+        user = f"bench{run}_{i}"
+        statements.append(
+            f"INSERT INTO users (username, password, registration_date) VALUES ('{user}', 'pw', datetime('now'))")
+        statements.append(
+            f"INSERT INTO login_history (username, login_time) VALUES ('{user}', datetime('now'))")
+    return statements
+
+
+def encode_batch(statements: list) -> bytes:
+    # Same format as SqlConnectionPool.executeBatch: BATCH <count>\n then <byte length>\n<statement>
+    parts = [f"BATCH {len(statements)}\n".encode()]
+    for sql in statements:
+        data = sql.encode("utf-8")
+        parts.append(f"{len(data)}\n".encode())
+        parts.append(data)
+    return b"".join(parts)
+
+
+def replay(statements: list, batch_size: int) -> float:
+    with socket.create_connection(("127.0.0.1", PORT)) as sock:
+        start = time.perf_counter()
+        if batch_size == 1:
+            # Pipelined, one message per statement (like the audit writer before batching)
+            sock.sendall(b"".join(sql.encode("utf-8") + b"\0" for sql in statements))
+            replies = recv_replies(sock, len(statements))
+            failed = sum(1 for r in replies if not r.startswith(b"SUCCESS"))
+        else:
+            failed = 0
+            for i in range(0, len(statements), batch_size):
+                sock.sendall(encode_batch(statements[i:i + batch_size]) + b"\0")
+                reply = recv_replies(sock, 1)[0]
+                failed += sum(1 for r in reply.split(b"\n") if not r.startswith(b"SUCCESS"))
+        elapsed = time.perf_counter() - start
+    if failed:
+        print(f"   warning: {failed} statements failed")
+    return elapsed
+
+
+def main():
+    logins = int(sys.argv[1]) if len(sys.argv) > 1 else 5000
+    batch_sizes = [int(b) for b in sys.argv[2:]] or [1, 16, 64, 256]
+
+    with tempfile.TemporaryDirectory() as workdir:
+        server = subprocess.Popen(
+            [sys.executable, os.path.join(HERE, "sql_server.py"), str(PORT)],
+            cwd=workdir, stdout=subprocess.DEVNULL, stderr=subprocess.DEVNULL)
+        try:
+            for _ in range(50):
+                try:
+                    socket.create_connection(("127.0.0.1", PORT)).close()
+                    break
+                except OSError:
+                    time.sleep(0.1)
+
+            print(f"{logins} logins = {2 * logins} statements per run")
+            for run, batch_size in enumerate(batch_sizes):
+                elapsed = replay(login_statements(logins, run), batch_size)
+                rate = 2 * logins / elapsed
+                print(f"   batch {batch_size:>5}: {elapsed:8.2f} s  {rate:10.0f} statements/s")
+        finally:
+            server.terminate()
+            server.wait()
+
+
+if __name__ == "__main__":
+    main()
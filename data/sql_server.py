@@ -17,16 +17,22 @@ SERVER_NAME = "STOMP_PYTHON_SQL_SERVER"  # DO NOT CHANGE!
 DB_FILE = "stomp_server.db"              # DO NOT CHANGE!
 
 
-def recv_null_terminated(sock: socket.socket) -> str:
+BATCH_PREFIX = b"BATCH "
+QUERY_PREFIX = b"QUERY "
+
+
+def recv_null_terminated(sock: socket.socket):
+    """מחזיר את ההודעות אחת אחרי השנייה. הלקוח יכול לשלוח כמה הודעות ברצף (pipelining),
+    לכן מה שנשאר אחרי ה-null הראשון נשמר להודעה הבאה ולא נזרק"""
     data = b""
     while True:
-        chunk = sock.recv(1024)
+        chunk = sock.recv(65536)
         if not chunk:
-            return ""
+            return
         data += chunk
-        if b"\0" in data:
-            msg, _ = data.split(b"\0", 1)
-            return msg.decode("utf-8", errors="replace")
+        *messages, data = data.split(b"\0")
+        for msg in messages:
+            yield msg
 
 
 def init_database():
@@ -40,64 +46,173 @@ def init_database():
                 registration_date TEXT
             )
         ''')
+        # הטבלאות שה-Database בג'אווה כותב אליהן
+        cursor.execute('''
+            CREATE TABLE IF NOT EXISTS login_history (
+                username TEXT NOT NULL,
+                login_time TEXT,
+                logout_time TEXT
+            )
+        ''')
+        cursor.execute('''
+            CREATE TABLE IF NOT EXISTS file_tracking (
+                username TEXT NOT NULL,
+                filename TEXT,
+                upload_time TEXT,
+                game_channel TEXT
+            )
+        ''')
+        # WAL: commit כותב רק ל-log ברצף, וקוראים לא נחסמים בזמן כתיבה
+        cursor.execute("PRAGMA journal_mode=WAL")
         conn.commit()
     print(f"[{SERVER_NAME}] Database initialized.")
 
 
-def execute_sql_command(sql_command: str) -> str:
+def execute_sql_command(conn: sqlite3.Connection, sql_command: str) -> str:
     """מריץ פקודות שלא מחזירות מידע כמו INSERT, UPDATE, DELETE"""
     try:
-        with sqlite3.connect(DB_FILE) as conn:
-            cursor = conn.cursor()
-            cursor.execute(sql_command)
-            conn.commit()
+        with conn:  # commit בהצלחה, rollback בשגיאה
+            conn.execute(sql_command)
         return "SUCCESS"
     except Exception as e:
         return f"error: {e}"
 
 
-def execute_sql_query(sql_query: str) -> str:
+def parse_batch(message: bytes) -> list:
+    """BATCH <count>\n ואחריו לכל פקודה: <אורך בבתים>\n<הפקודה>"""
+    header, _, rest = message.partition(b"\n")
+    count = int(header[len(BATCH_PREFIX):])
+    statements = []
+    pos = 0
+    for _ in range(count):
+        newline = rest.index(b"\n", pos)
+        length = int(rest[pos:newline])
+        start = newline + 1
+        statements.append(rest[start:start + length].decode("utf-8", errors="replace"))
+        pos = start + length
+    return statements
+
+
+def execute_sql_batch(conn: sqlite3.Connection, statements: list) -> str:
+    """מריץ את כל הפקודות בטרנזקציה אחת (commit ו-fsync אחד לכל ה-batch).
+    כל פקודה רצה בתוך savepoint משלה, כך שפקודה שנכשלת מבוטלת לבד והשאר נשמרות.
+    מחזיר סטטוס לכל פקודה, שורה לכל אחת ובאותו סדר"""
+    statuses = []
+    try:
+        conn.execute("BEGIN")
+        for sql in statements:
+            conn.execute("SAVEPOINT stmt")
+            try:
+                conn.execute(sql)
+                statuses.append("SUCCESS")
+            except Exception as e:
+                conn.execute("ROLLBACK TO stmt")
+                statuses.append(f"error: {e}".replace("\n", " "))
+            conn.execute("RELEASE stmt")
+        conn.commit()
+    except Exception as e:
+        conn.rollback()
+        return f"ERROR: {e}"
+    return "\n".join(statuses)
+
+
+def execute_sql_query(conn: sqlite3.Connection, sql_query: str) -> str:
     """מריץ פקודות שמחזירות מידע כמו SELECT בפורמט מותאם למה שהגדרנו ב Java"""
     try:
-        with sqlite3.connect(DB_FILE) as conn:
-            cursor = conn.cursor()
-            cursor.execute(sql_query)
-            rows = cursor.fetchall()
-            
-            if not rows:
-                return "SUCCESS|" # מחזיר ריק אבל בפורמט תקין
-            
-            # בונה את המחרוזת: SUCCESS|(row1)|(row2)|(row3)
-            result = "SUCCESS|" + "|".join(str(row) for row in rows)
-            return result
+        cursor = conn.cursor()
+        cursor.execute(sql_query)
+        rows = cursor.fetchall()
+        
+        if not rows:
+            return "SUCCESS|" # מחזיר ריק אבל בפורמט תקין
+        
+        # בונה את המחרוזת: SUCCESS|(row1)|(row2)|(row3)
+        result = "SUCCESS|" + "|".join(str(row) for row in rows)
+        return result
             
     except Exception as e:
         return f"ERROR: {e}"
 
-def handle_client(client_socket: socket.socket, addr):
-    print(f"[{SERVER_NAME}] Client connected from {addr}")
+def encode_value(value) -> bytes:
+    """<אורך בבתים>\n<הבתים>, ו- -1 בשביל NULL"""
+    if value is None:
+        return b"-1\n"
+    data = value if isinstance(value, bytes) else str(value).encode("utf-8", errors="replace")
+    return b"%d\n%s" % (len(data), data)
+
+
+def stream_sql_query(conn: sqlite3.Connection, sock: socket.socket, sql_query: str):
+    """כמו execute_sql_query אבל בפורמט מובנה שנשלח תוך כדי קריאה מה-cursor,
+    כך שגם תוצאה של מיליוני שורות לא נבנית כולה בזיכרון:
+    ROWS <עמודות>\n, אחר כך R וערך לכל עמודה לכל שורה, ובסוף E (או X והודעת שגיאה) ו-null"""
+    try:
+        cursor = conn.execute(sql_query)
+    except Exception as e:
+        sock.sendall(f"ERROR: {e}".encode("utf-8", errors="replace") + b"\0")
+        return
 
+    columns = len(cursor.description) if cursor.description else 0
+    out = bytearray(b"ROWS %d\n" % columns)
     try:
         while True:
-            message = recv_null_terminated(client_socket)
-            if message == "":
+            rows = cursor.fetchmany(512)
+            if not rows:
                 break
+            for row in rows:
+                out += b"R"
+                for value in row:
+                    out += encode_value(value)
+            if len(out) >= 65536:
+                sock.sendall(out)
+                out.clear()
+        out += b"E"
+    except sqlite3.Error as e:
+        out += b"X" + encode_value(f"ERROR: {e}")
+    sock.sendall(bytes(out) + b"\0")
+
+
+def handle_client(client_socket: socket.socket, addr):
+    print(f"[{SERVER_NAME}] Client connected from {addr}")
+
+    # חיבור SQLite אחד לכל סוקט, לכל אורך החיבור, במקום חיבור חדש לכל פקודה
+    conn = sqlite3.connect(DB_FILE)
+    try:
+        for raw in recv_null_terminated(client_socket):
+            if raw.startswith(BATCH_PREFIX):
+                try:
+                    statements = parse_batch(raw)
+                except (ValueError, IndexError) as e:
+                    result = f"ERROR: malformed batch: {e}"
+                else:
+                    print(f"[{SERVER_NAME}] Received batch of {len(statements)} statements")
+                    result = execute_sql_batch(conn, statements)
+                client_socket.sendall(result.encode("utf-8", errors="replace") + b"\0")
+                continue
+
+            if raw.startswith(QUERY_PREFIX):
+                sql_query = raw[len(QUERY_PREFIX):].decode("utf-8", errors="replace").strip()
+                print(f"[{SERVER_NAME}] Received query:")
+                print(sql_query)
+                stream_sql_query(conn, client_socket, sql_query)
+                continue
 
+            message = raw.decode("utf-8", errors="replace")
             print(f"[{SERVER_NAME}] Received:")
             print(message)
 
             cmd = message.strip()
             if cmd.upper().startswith("SELECT"):
-                result = execute_sql_query(cmd)
+                result = execute_sql_query(conn, cmd)
             else:
-                result = execute_sql_command(cmd)
+                result = execute_sql_command(conn, cmd)
             
-            # שולח בחזרה לג'אווה כולל ה-null terminator
+            # שולח בחזרה לג'אווה כולל ה-null terminator. התשובות יוצאות בסדר שבו הפקודות הגיעו
             client_socket.sendall(result.encode("utf-8", errors="replace") + b"\0")
 
     except Exception as e:
         print(f"[{SERVER_NAME}] Error handling client {addr}: {e}")
     finally:
+        conn.close()
         try:
             client_socket.close()
         except Exception:
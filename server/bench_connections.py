@@ -0,0 +1,158 @@
+#!/usr/bin/env python3
+"""
+Benchmark for the per-connection state of the STOMP server (connection, session and
+subscription registries).
+
+memory     - the live heap (after a full GC, via jcmd) before and after N clients log in and
+             subscribe to SUBS channels each, divided by N. The boxed-key classes
+             (Integer, ConcurrentHashMap$Node) are listed so a regression to boxed maps shows up.
+throughput - one of the clients publishes MESSAGES messages to a channel that all N clients are
+             subscribed to; every delivery looks the subscriber up by connection id.
+
+With "boxed" as the last argument the same run is repeated on the tree from just before the
+registries moved to IntObjectMap (ConcurrentHashMap<Integer, ...> everywhere), built from git
+into a temporary worktree, and the difference per connection is printed.
+
+usage: bench_connections.py [tpc|vtpc|reactor|multireactor] [connections] [messages] [subs] [boxed]
+example: bench_connections.py reactor 5000 200 4 boxed
+"""
+
+import contextlib
+import os
+import selectors
+import subprocess
+import sys
+import tempfile
+import time
+
+from stomp_harness import CLASSES, HERE, StompClient, class_histogram, rss_kb, running_server
+
+PORT = 7782
+INT_MAP = "src/main/java/bgu/spl/net/srv/IntObjectMap.java"
+WATCHED = ("java.lang.Integer", "java.util.concurrent.ConcurrentHashMap$Node",
+           "bgu.spl.net.srv.IntObjectMap", "[Ljava.lang.Object;")
+
+
+def open_clients(count: int, subs: int) -> list:
+    clients = []
+    for i in range(count):
+        client = StompClient(PORT)
+        # Pipelined: the CONNECT and the SUBSCRIBEs go out together, the replies are read later
+        client.send_frame("CONNECT", {"accept-version": "1.2", "host": "stomp.cs.bgu.ac.il",
+                                      "login": f"bench{i}", "passcode": "pw"})
+        for sub_id in range(subs):
+            headers = {"destination": "/bench" if sub_id == 0 else f"/bench{i % 100}_{sub_id}", "id": sub_id}
+            if sub_id == subs - 1:
+                headers["receipt"] = "ready"
+            client.send_frame("SUBSCRIBE", headers)
+        clients.append(client)
+    for client in clients:
+        client.expect("CONNECTED", timeout=60)
+        client.expect("RECEIPT", timeout=60)
+    return clients
+
+
+def broadcast(clients: list, messages: int) -> float:
+    selector = selectors.DefaultSelector()
+    for client in clients:
+        client.sock.setblocking(False)
+        selector.register(client.sock, selectors.EVENT_READ)
+    publisher = clients[0]
+    expected = len(clients) * messages
+    received = 0
+    start = time.perf_counter()
+    publisher.sock.setblocking(True)
+    for i in range(messages):
+        publisher.publish("/bench", f"seq:{i}")
+    publisher.sock.setblocking(False)
+    while received < expected:
+        events = selector.select(timeout=30)
+        if not events:
+            raise AssertionError(f"only {received} of {expected} messages arrived")
+        for key, _ in events:
+            received += key.fileobj.recv(1 << 20).count(b"\0")
+    elapsed = time.perf_counter() - start
+    selector.close()
+    return elapsed
+
+
+@contextlib.contextmanager
+def boxed_build():
+    """target/classes of the revision before the one that added IntObjectMap, in a temporary worktree."""
+    added = subprocess.run(["git", "log", "--diff-filter=A", "--format=%H", "--", INT_MAP],
+                           cwd=HERE, capture_output=True, text=True, check=True).stdout.split()
+    if not added:
+        sys.exit(f"{INT_MAP} has no history in git, no boxed build to compare with")
+    with tempfile.TemporaryDirectory() as workdir:
+        tree = os.path.join(workdir, "boxed")
+        subprocess.run(["git", "worktree", "add", "--detach", tree, added[-1] + "~1"],
+                       cwd=HERE, check=True, stdout=subprocess.DEVNULL, stderr=subprocess.DEVNULL)
+        try:
+            server = os.path.join(tree, os.path.relpath(HERE, subprocess.run(
+                ["git", "rev-parse", "--show-toplevel"], cwd=HERE, capture_output=True, text=True,
+                check=True).stdout.strip()))
+            subprocess.run(["mvn", "-B", "-q", "compile"], cwd=server, check=True)
+            yield os.path.join(server, "target", "classes")
+        finally:
+            subprocess.run(["git", "worktree", "remove", "--force", tree], cwd=HERE, check=True)
+
+
+def measure(mode: str, connections: int, messages: int, subs: int, classes: str) -> dict:
+    """Prints the numbers of one build and returns them per connection (bytes) and per second."""
+    result = {}
+    with running_server(mode, PORT, classes=classes) as server:
+        before = class_histogram(server.pid)
+        rss_before = rss_kb(server.pid)
+        start = time.perf_counter()
+        clients = open_clients(connections, subs)
+        print(f"{connections} clients x {subs} subscriptions logged in in {time.perf_counter() - start:.2f} s")
+
+        after = class_histogram(server.pid)
+        rss_after = rss_kb(server.pid)
+        result["RSS"] = (rss_after - rss_before) * 1024 / connections
+        print(f"   RSS: {result['RSS']:10.0f} bytes per connection")
+        if before is None or after is None:
+            print("   jcmd not available, no live heap numbers")
+        else:
+            result["live heap"] = (after["Total"][1] - before["Total"][1]) / connections
+            print(f"   live heap: {result['live heap']:10.0f} bytes per connection")
+            for name in WATCHED:
+                instances = after.get(name, (0, 0))[0] - before.get(name, (0, 0))[0]
+                size = after.get(name, (0, 0))[1] - before.get(name, (0, 0))[1]
+                print(f"   {name:<45} {instances / connections:8.2f} objects {size / connections:8.0f} bytes per connection")
+
+        elapsed = broadcast(clients, messages)
+        deliveries = connections * messages
+        result["deliveries/s"] = deliveries / elapsed
+        print(f"{messages} messages to {connections} subscribers: {elapsed:.2f} s  {deliveries / elapsed:10.0f} deliveries/s")
+        for client in clients:
+            client.close()
+    return result
+
+
+def main():
+    mode = sys.argv[1] if len(sys.argv) > 1 else "reactor"
+    connections = int(sys.argv[2]) if len(sys.argv) > 2 else 2000
+    messages = int(sys.argv[3]) if len(sys.argv) > 3 else 100
+    subs = int(sys.argv[4]) if len(sys.argv) > 4 else 4
+    compare = len(sys.argv) > 5 and sys.argv[5] == "boxed"
+
+    if compare:
+        print("== this tree (IntObjectMap)")
+    current = measure(mode, connections, messages, subs, CLASSES)
+    if not compare:
+        return
+
+    with boxed_build() as classes:
+        print("== boxed baseline (ConcurrentHashMap<Integer, ...>)")
+        boxed = measure(mode, connections, messages, subs, classes)
+    print("== IntObjectMap vs boxed")
+    for name in ("live heap", "RSS"):
+        if name in current and name in boxed:
+            print(f"   {name:<12} {current[name]:8.0f} vs {boxed[name]:8.0f} bytes per connection, "
+                  f"{boxed[name] - current[name]:8.0f} saved")
+    print(f"   {'throughput':<12} {current['deliveries/s']:8.0f} vs {boxed['deliveries/s']:8.0f} deliveries/s")
+
+
+if __name__ == "__main__":
+    main()
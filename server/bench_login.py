@@ -0,0 +1,106 @@
+#!/usr/bin/env python3
+"""
+Login contention benchmark for the STOMP server (user registration and the session table).
+
+Each of N threads opens a connection, logs in, and disconnects, over and over:
+  distinct  - every login is a new username, so every login is also a registration
+  colliding - all threads log in to the same few usernames; a login must either get CONNECTED
+              or "User already logged in", and no username may ever have two sessions at once
+
+usage: bench_login.py [tpc|vtpc|reactor|multireactor] [threads] [logins per thread] [colliding users]
+example: bench_login.py reactor 32 200 4
+"""
+
+import collections
+import sys
+import threading
+import time
+
+from stomp_harness import StompClient, running_server
+
+PORT = 7783
+
+
+class Sessions:
+    """Client-side count of the open sessions of every username."""
+
+    def __init__(self):
+        self.lock = threading.Lock()
+        self.open = collections.Counter()
+        self.overlaps = 0
+
+    def opened(self, login: str):
+        with self.lock:
+            self.open[login] += 1
+            if self.open[login] > 1:
+                self.overlaps += 1
+
+    def closing(self, login: str):
+        # Counted as closed before DISCONNECT is sent, so a session is only counted while
+        # the server surely still holds it
+        with self.lock:
+            self.open[login] -= 1
+
+
+def run_threads(threads: int, logins: int, pick_login, sessions: Sessions):
+    outcomes = collections.Counter()
+    lock = threading.Lock()
+    barrier = threading.Barrier(threads)
+
+    def worker(thread: int):
+        local = collections.Counter()
+        barrier.wait()
+        for i in range(logins):
+            login = pick_login(thread, i)
+            client = StompClient(PORT)
+            frame = client.connect(login)
+            if frame and frame[0] == "CONNECTED":
+                local["connected"] += 1
+                sessions.opened(login)
+                client.subscribe("/login", 0, receipt="held")  # keep the session open for a round trip
+                sessions.closing(login)
+                client.disconnect()
+            else:
+                local[frame[1].get("message", "closed") if frame else "closed"] += 1
+                client.close()
+        with lock:
+            outcomes.update(local)
+
+    workers = [threading.Thread(target=worker, args=(t,)) for t in range(threads)]
+    start = time.perf_counter()
+    for w in workers:
+        w.start()
+    for w in workers:
+        w.join()
+    return time.perf_counter() - start, outcomes
+
+
+def report(name: str, attempts: int, elapsed: float, outcomes: collections.Counter):
+    print(f"   {name:<10} {elapsed:8.2f} s  {attempts / elapsed:10.0f} logins/s  {dict(outcomes)}")
+
+
+def main():
+    mode = sys.argv[1] if len(sys.argv) > 1 else "reactor"
+    threads = int(sys.argv[2]) if len(sys.argv) > 2 else 16
+    logins = int(sys.argv[3]) if len(sys.argv) > 3 else 100
+    colliding = int(sys.argv[4]) if len(sys.argv) > 4 else 4
+    run = int(time.time())
+
+    with running_server(mode, PORT):
+        print(f"{threads} threads x {logins} logins")
+
+        sessions = Sessions()
+        elapsed, outcomes = run_threads(threads, logins, lambda t, i: f"new{run}_{t}_{i}", sessions)
+        report("distinct", threads * logins, elapsed, outcomes)
+        assert outcomes["connected"] == threads * logins, outcomes
+
+        sessions = Sessions()
+        elapsed, outcomes = run_threads(threads, logins, lambda t, i: f"hot{run}_{(t + i) % colliding}", sessions)
+        report("colliding", threads * logins, elapsed, outcomes)
+        assert sessions.overlaps == 0, f"{sessions.overlaps} logins overlapped another session of the same user"
+        assert set(outcomes) <= {"connected", "User already logged in"}, outcomes
+    print("LOGIN OK")
+
+
+if __name__ == "__main__":
+    main()
@@ -0,0 +1,131 @@
+#!/usr/bin/env python3
+"""
+Subscription churn soak test for the STOMP server.
+
+Every round, CLIENTS users log in, subscribe to random channels, move a subscription id to
+another channel (id reuse), unsubscribe, and then leave - half with DISCONNECT and half by
+just closing the socket. In the middle of each round a publisher sends one message to every
+channel, and every client must get exactly the messages of the channels it is subscribed to
+at that moment: nothing missing, and nothing from a channel it left or an id it moved.
+
+At the end the live heap (after a full GC, via jcmd) is compared to the one after the first
+round, and no connection handler of a client that left may still be alive.
+
+usage: churn_test.py [tpc|vtpc|reactor|multireactor] [rounds] [clients]
+example: churn_test.py reactor 30 50
+"""
+
+import random
+import sys
+import time
+
+from stomp_harness import StompClient, class_histogram, rss_kb, running_server
+
+PORT = 7781
+CHANNELS = [f"/churn{i}" for i in range(10)]
+HANDLER_CLASSES = ("bgu.spl.net.srv.NonBlockingConnectionHandler", "bgu.spl.net.srv.BlockingConnectionHandler")
+
+
+def live_heap(pid: int):
+    """(live bytes, live connection handlers) after a full GC, or None if jcmd is not available."""
+    histogram = class_histogram(pid)
+    if histogram is None:
+        return None
+    handlers = sum(histogram.get(name, (0, 0))[0] for name in HANDLER_CLASSES)
+    return histogram["Total"][1], handlers
+
+
+def log_in(login: str) -> StompClient:
+    # A client that closed its socket in the previous round may not have been logged out yet
+    for _ in range(100):
+        client = StompClient(PORT)
+        frame = client.connect(login)
+        if frame and frame[0] == "CONNECTED":
+            return client
+        client.close()
+        if not frame or "already logged in" not in frame[1].get("message", "").lower():
+            raise AssertionError(f"{login} could not log in: {frame}")
+        time.sleep(0.05)
+    raise AssertionError(f"{login} is still logged in")
+
+
+def play_round(rnd: int, clients: int):
+    sessions = []
+    for i in range(clients):
+        client = log_in(f"churn{i}")
+        subs = {}  # sub id -> channel
+        for sub_id, channel in enumerate(random.sample(CHANNELS, 4)):
+            client.subscribe(channel, sub_id)
+            subs[sub_id] = channel
+        # Move an id to a channel this client is not on yet; the old channel must stop delivering
+        moved = random.choice(list(subs))
+        target = random.choice([c for c in CHANNELS if c not in subs.values()])
+        client.subscribe(target, moved)
+        subs[moved] = target
+        # And drop one of the others
+        dropped = random.choice([s for s in subs if s != moved])
+        client.unsubscribe(dropped, receipt=f"u{rnd}")
+        del subs[dropped]
+        sessions.append((client, subs))
+
+    publisher = log_in("churn-publisher")
+    for sub_id, channel in enumerate(CHANNELS):
+        publisher.subscribe(channel, sub_id)
+    for channel in CHANNELS:
+        publisher.publish(channel, f"round:{rnd}\nchannel:{channel}")
+    # The RECEIPT of DISCONNECT is sent only after the fan-out of everything the client sent,
+    # so from here on every MESSAGE of this round is already queued on the subscribers
+    publisher.disconnect()
+
+    for client, subs in sessions:
+        # The RECEIPT is queued behind every MESSAGE that was already queued for this client
+        last = next(iter(subs))
+        client.send_frame("UNSUBSCRIBE", {"id": last, "receipt": "check"})
+        got = []
+        while True:
+            command, headers, body = client.recv_frame()
+            if command == "RECEIPT":
+                break
+            assert command == "MESSAGE", (command, headers, body)
+            assert subs.get(int(headers["subscription"])) == headers["destination"], (subs, headers)
+            got.append(headers["destination"])
+        assert sorted(got) == sorted(subs.values()), (rnd, sorted(got), sorted(subs.values()))
+
+    for n, (client, _) in enumerate(sessions):
+        if n % 2 == 0:
+            client.disconnect()
+        else:
+            client.close()
+
+
+def main():
+    mode = sys.argv[1] if len(sys.argv) > 1 else "reactor"
+    rounds = int(sys.argv[2]) if len(sys.argv) > 2 else 30
+    clients = int(sys.argv[3]) if len(sys.argv) > 3 else 50
+    random.seed(1)
+
+    with running_server(mode, PORT) as server:
+        baseline = None
+        start = time.perf_counter()
+        for rnd in range(rounds):
+            play_round(rnd, clients)
+            if rnd == 0:
+                time.sleep(0.5)
+                baseline = live_heap(server.pid)
+        elapsed = time.perf_counter() - start
+        print(f"{rounds} rounds x {clients} clients in {elapsed:.1f} s, server RSS {rss_kb(server.pid) // 1024} MB")
+
+        time.sleep(0.5)
+        final = live_heap(server.pid)
+        if baseline is None or final is None:
+            print("jcmd not available, skipping the heap check")
+        else:
+            print(f"live heap after round 1: {baseline[0] // 1024} KB, after round {rounds}: {final[0] // 1024} KB")
+            # Every client has left
+            assert final[1] == 0, f"{final[1]} connection handlers are still alive"
+            assert final[0] <= baseline[0] * 1.25 + (1 << 20), "live heap grew during the churn"
+    print("CHURN OK")
+
+
+if __name__ == "__main__":
+    main()
@@ -0,0 +1,104 @@
+#!/usr/bin/env python3
+"""
+Stalled-reader test for the outbound backpressure of the reactor (reactor.slowConsumerPolicy).
+
+A client with a tiny receive buffer subscribes to a channel and stops reading, while a
+publisher broadcasts MESSAGES frames of 50 KB to it, far above the small high water mark the
+server is started with. The publisher reads its own copies and must get every one of them
+whatever happens to the stalled client. Once the broadcast is over the stalled client reads
+what the server kept for it:
+  DISCONNECT    - the user is logged out (the same user can log in again) before the client
+                  reads anything, and the client gets an unbroken prefix of the messages, an
+                  ERROR if there was room for it, and then the connection is closed
+  DROP_OLDEST   - increasing seqs with gaps, ending at the newest message, and the
+                  connection still works
+  PAUSE_READING - every message, in order
+
+usage: slow_consumer_test.py [reactor|multireactor] [messages]
+example: slow_consumer_test.py multireactor 200
+"""
+
+import socket
+import sys
+import time
+
+from stomp_harness import StompClient, running_server
+
+PORT = 7784
+BODY = "y" * 50000
+WINDOW = 10  # the publisher waits for its own copies every WINDOW messages, so it never lags itself
+
+
+def seq_of(frame) -> int:
+    return int(frame[2].split("seq:")[1].split("\n")[0])
+
+
+def stalled_reader(policy: str, mode: str, messages: int):
+    properties = {"reactor.slowConsumerPolicy": policy,
+                  "reactor.highWaterBytes": 1 << 20,
+                  "reactor.lowWaterBytes": 1 << 18}
+    with running_server(mode, PORT, properties):
+        stalled = StompClient(PORT, receive_buffer=4096)
+        assert stalled.connect("stalled")[0] == "CONNECTED"
+        stalled.subscribe("/stall", 1, receipt="s")
+        publisher = StompClient(PORT)
+        assert publisher.connect("publisher")[0] == "CONNECTED"
+        publisher.subscribe("/stall", 1, receipt="s")
+
+        for first in range(0, messages, WINDOW):
+            last = min(first + WINDOW, messages)
+            for seq in range(first, last):
+                publisher.publish("/stall", f"seq:{seq}\n{BODY}")
+            for seq in range(first, last):
+                frame = publisher.expect("MESSAGE")
+                assert seq_of(frame) == seq, (seq, frame[1])
+
+        time.sleep(0.5)
+        if policy == "DISCONNECT":
+            # Still without reading anything: the server must not wait for this client to take the ERROR
+            again = StompClient(PORT)
+            assert again.connect("stalled")[0] == "CONNECTED", "the dropped user is still logged in"
+            again.disconnect()
+
+        frames = []
+        closed = False
+        try:
+            while not closed:
+                frame = stalled.recv_frame(2)
+                if frame is None:
+                    closed = True
+                else:
+                    frames.append(frame)
+        except socket.timeout:
+            pass
+        seqs = [seq_of(f) for f in frames if f[0] == "MESSAGE"]
+
+        if policy == "DISCONNECT":
+            assert closed, "the connection was not closed"
+            assert all(f[0] == "MESSAGE" for f in frames[:-1]) and frames[-1][0] in ("MESSAGE", "ERROR"), \
+                [f[0] for f in frames[-3:]]
+            assert seqs == list(range(len(seqs))) and len(seqs) < messages, seqs
+        elif policy == "DROP_OLDEST":
+            assert not closed, "the connection was closed"
+            assert seqs == sorted(set(seqs)) and len(seqs) < messages, seqs
+            assert seqs[-1] == messages - 1, seqs[-5:]
+            stalled.subscribe("/other", 2, receipt="alive")
+        else:
+            assert not closed, "the connection was closed"
+            assert seqs == list(range(messages)), (len(seqs), seqs[:5])
+        print(f"   {policy:<14} {mode:<13} stalled client got {len(seqs)} of {messages}")
+        stalled.close()
+        publisher.disconnect()
+
+
+def main():
+    modes = [sys.argv[1]] if len(sys.argv) > 1 else ["reactor", "multireactor"]
+    messages = int(sys.argv[2]) if len(sys.argv) > 2 else 200
+    for mode in modes:
+        for policy in ("DISCONNECT", "DROP_OLDEST", "PAUSE_READING"):
+            stalled_reader(policy, mode, messages)
+    print("SLOW CONSUMER OK")
+
+
+if __name__ == "__main__":
+    main()
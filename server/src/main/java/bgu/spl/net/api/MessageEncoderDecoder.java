@@ -1,5 +1,9 @@
 package bgu.spl.net.api;
 
+import java.nio.ByteBuffer;
+import java.util.function.Consumer;
+import java.util.function.IntFunction;
+
 public interface MessageEncoderDecoder<T> {
 
     /**
@@ -11,6 +15,36 @@ public interface MessageEncoderDecoder<T> {
      */
     T decodeNextByte(byte nextByte);
 
+    /**
+     * decode all the bytes remaining in the given buffer, passing every
+     * message completed along the way to out (in order).
+     * the default implementation feeds the bytes one by one to decodeNextByte,
+     * implementations should override it to scan and copy whole buffers at once
+     *
+     * @param buf the bytes to decode, the buffer is consumed entirely
+     * @param out receives each decoded message
+     */
+    default void decode(ByteBuffer buf, Consumer<T> out) {
+        while (buf.hasRemaining()) {
+            T nextMessage = decodeNextByte(buf.get());
+            if (nextMessage != null) {
+                out.accept(nextMessage);
+            }
+        }
+    }
+
+    /**
+     * returns a message that stays valid after the decoding continues.
+     * the default returns the message itself, which is right for decoders that create
+     * a new message every time; decoders that reuse a message object must copy it
+     *
+     * @param message a message produced by this decoder
+     * @return the message, or a copy of it that this decoder will not change
+     */
+    default T copy(T message) {
+        return message;
+    }
+
     /**
      * encodes the given message to bytes array
      *
@@ -19,4 +53,25 @@ public interface MessageEncoderDecoder<T> {
      */
     byte[] encode(T message);
 
+    /**
+     * encodes the given message directly into a buffer obtained from alloc,
+     * which is asked for a buffer with room for at least the encoded size.
+     * the default implementation copies the result of encode(T) into it,
+     * implementations should override it to write straight into the buffer
+     *
+     * @param message the message to encode
+     * @param alloc supplies a cleared buffer with at least the requested capacity
+     * @return the buffer holding the encoded bytes, flipped and ready to be written,
+     * or null if there is nothing to send
+     */
+    default ByteBuffer encode(T message, IntFunction<ByteBuffer> alloc) {
+        byte[] encoded = encode(message);
+        if (encoded == null) {
+            return null;
+        }
+        ByteBuffer buf = alloc.apply(encoded.length);
+        buf.put(encoded).flip();
+        return buf;
+    }
+
 }
@@ -13,5 +13,23 @@ public interface MessagingProtocol<T> {
      * @return true if the connection should be terminated
      */
     boolean shouldTerminate();
+
+    /**
+     * @param msg a message that was just decoded
+     * @return true if processing the message is cheap and never blocks, so it may run
+     * directly on the selector thread instead of being handed to the thread pool.
+     * the default is false, every message goes to the pool
+     */
+    default boolean isCheap(T msg) {
+        return false;
+    }
+
+    /**
+     * called once when the connection is closed without the protocol asking for it
+     * (the client closed the socket, an IO error, the server dropped a slow consumer),
+     * so the protocol can release what the client held. the default does nothing
+     */
+    default void connectionLost() {
+    }
  
 }
\ No newline at end of file
@@ -0,0 +1,209 @@
+package bgu.spl.net.impl.data;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+/**
+ * Write-behind queue for audit SQL (registrations, login history, file tracking).
+ * Nobody waits for the result of these statements, so the actor threads only enqueue them
+ * and a single writer thread sends them to the SQL server in batches, in the order they were added.
+ */
+class AuditWriter {
+
+	/**
+	 * What to do when the queue is full.
+	 */
+	enum OverflowPolicy {
+		BLOCK,       // wait for room (no audit row is lost, but the caller stalls)
+		DROP_NEWEST, // drop the statement being added
+		DROP_OLDEST  // drop the oldest queued statement to make room
+	}
+
+	private static final class Pending {
+		final String sql;
+		final long enqueuedAt;
+
+		Pending(String sql) {
+			this.sql = sql;
+			this.enqueuedAt = System.nanoTime();
+		}
+	}
+
+	private final BlockingQueue<Pending> queue;
+	private final int batchSize;
+	private final OverflowPolicy policy;
+	private final Consumer<List<String>> sink;
+	private final Thread writer;
+	private volatile boolean closed = false;
+
+	// accepted = statements that entered the queue, settled = statements written or dropped from it
+	private final AtomicLong accepted = new AtomicLong();
+	private final AtomicLong settled = new AtomicLong();
+	private final AtomicLong written = new AtomicLong();
+	private final AtomicLong dropped = new AtomicLong();
+	private volatile long lastLagNanos = 0;
+	private volatile long maxLagNanos = 0;
+
+	/**
+	 * @param sink runs one batch of statements, in order, on the writer thread
+	 */
+	AuditWriter(int capacity, int batchSize, OverflowPolicy policy, Consumer<List<String>> sink) {
+		this.queue = new ArrayBlockingQueue<>(capacity);
+		this.batchSize = Math.max(1, batchSize);
+		this.policy = policy;
+		this.sink = sink;
+		this.writer = new Thread(this::run, "audit-writer");
+		this.writer.setDaemon(true);
+		this.writer.start();
+	}
+
+	/**
+	 * Queues a statement. Returns false if it was dropped by the overflow policy.
+	 */
+	boolean submit(String sql) {
+		if (closed) {
+			dropped.incrementAndGet();
+			return false;
+		}
+		Pending pending = new Pending(sql);
+		switch (policy) {
+			case DROP_NEWEST:
+				if (!queue.offer(pending)) {
+					dropped.incrementAndGet();
+					return false;
+				}
+				break;
+			case DROP_OLDEST:
+				while (!queue.offer(pending)) {
+					if (queue.poll() != null) {
+						dropped.incrementAndGet();
+						settle(1);
+					}
+				}
+				break;
+			default:
+				try {
+					queue.put(pending);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					dropped.incrementAndGet();
+					return false;
+				}
+		}
+		accepted.incrementAndGet();
+		return true;
+	}
+
+	/**
+	 * Waits until everything queued before this call has been written (or dropped).
+	 * @return false if the timeout passed first
+	 */
+	boolean flush(long timeoutMillis) {
+		long target = accepted.get();
+		long deadline = System.currentTimeMillis() + timeoutMillis;
+		synchronized (settled) {
+			while (settled.get() < target) {
+				long left = deadline - System.currentTimeMillis();
+				if (left <= 0 || !writer.isAlive()) {
+					return false;
+				}
+				try {
+					settled.wait(left);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					return false;
+				}
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Stops accepting statements, writes what is still queued and stops the writer.
+	 */
+	void close(long timeoutMillis) {
+		closed = true;
+		try {
+			writer.join(timeoutMillis);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	int depth() {
+		return queue.size();
+	}
+
+	// Age of the oldest statement still waiting, or 0 when the queue is empty
+	long lagMillis() {
+		Pending oldest = queue.peek();
+		return oldest == null ? 0 : TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - oldest.enqueuedAt);
+	}
+
+	// Time the last written statement spent in the queue
+	long lastLagMillis() {
+		return TimeUnit.NANOSECONDS.toMillis(lastLagNanos);
+	}
+
+	long maxLagMillis() {
+		return TimeUnit.NANOSECONDS.toMillis(maxLagNanos);
+	}
+
+	long written() {
+		return written.get();
+	}
+
+	long dropped() {
+		return dropped.get();
+	}
+
+	private void run() {
+		List<Pending> batch = new ArrayList<>(batchSize);
+		List<String> statements = new ArrayList<>(batchSize);
+		while (!closed || !queue.isEmpty()) {
+			try {
+				Pending first = queue.poll(100, TimeUnit.MILLISECONDS);
+				if (first == null) {
+					continue;
+				}
+				batch.add(first);
+				queue.drainTo(batch, batchSize - 1);
+
+				long lag = System.nanoTime() - first.enqueuedAt;
+				lastLagNanos = lag;
+				if (lag > maxLagNanos) {
+					maxLagNanos = lag;
+				}
+
+				for (Pending pending : batch) {
+					statements.add(pending.sql);
+				}
+				sink.accept(statements);
+				written.addAndGet(batch.size());
+			} catch (InterruptedException e) {
+				break;
+			} catch (RuntimeException e) {
+				System.err.println("Audit write failed: " + e.getMessage());
+			} finally {
+				settle(batch.size());
+				batch.clear();
+				statements.clear();
+			}
+		}
+	}
+
+	private void settle(int count) {
+		if (count == 0) {
+			return;
+		}
+		settled.addAndGet(count);
+		synchronized (settled) {
+			settled.notifyAll();
+		}
+	}
+}
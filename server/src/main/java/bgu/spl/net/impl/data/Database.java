@@ -1,25 +1,48 @@
 package bgu.spl.net.impl.data;
 
-import java.io.BufferedReader;
-import java.io.InputStreamReader;
-import java.io.PrintWriter;
-import java.net.Socket;
+import bgu.spl.net.srv.IntObjectMap;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.List;
 import java.util.concurrent.ConcurrentHashMap;
 
 public class Database {
 	private final ConcurrentHashMap<String, User> userMap;
-	private final ConcurrentHashMap<Integer, User> connectionsIdMap;
-	private final ConcurrentHashMap<String, ConcurrentHashMap<Integer, String>> channelSubscriptions;
+	// Connection id -> logged-in user, split into shards so logins on different connections
+	// don't contend on the same write lock
+	private static final int SESSION_SHARDS = 16;
+	private final IntObjectMap<User>[] sessions;
 	private final String sqlHost;
 	private final int sqlPort;
+	// Long-lived, pipelined connections to the SQL server instead of a new socket per statement
+	private final SqlConnectionPool sqlPool;
+	// Audit statements (nobody reads their result) go through a write-behind queue
+	private final AuditWriter audit;
 
+	@SuppressWarnings({"unchecked", "rawtypes"})
 	private Database() {
 		userMap = new ConcurrentHashMap<>();
-		connectionsIdMap = new ConcurrentHashMap<>();
-		this.channelSubscriptions = new ConcurrentHashMap<>();
+		sessions = new IntObjectMap[SESSION_SHARDS];
+		for (int i = 0; i < SESSION_SHARDS; i++) {
+			sessions[i] = new IntObjectMap<>();
+		}
 		// SQL server connection details
 		this.sqlHost = "127.0.0.1";
 		this.sqlPort = 7778;
+		this.sqlPool = new SqlConnectionPool(sqlHost, sqlPort, Integer.getInteger("sql.poolSize", 4));
+
+		this.audit = new AuditWriter(
+			Integer.getInteger("audit.queueCapacity", 10_000),
+			Integer.getInteger("audit.batchSize", 64),
+			AuditWriter.OverflowPolicy.valueOf(System.getProperty("audit.overflow", "BLOCK").toUpperCase()),
+			this::executeBatch);
+		// Flush-on-shutdown: whatever is still queued is written before the JVM exits
+		Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+			audit.close(5_000);
+			sqlPool.close();
+			System.out.printf("audit writes: %d written, %d dropped, %d still queued, max lag %d ms%n",
+				audit.written(), audit.dropped(), audit.depth(), audit.maxLagMillis());
+		}, "audit-flush"));
 	}
 
 	public static Database getInstance() {
@@ -27,31 +50,18 @@ public class Database {
 	}
 
 	/**
-	 * Execute SQL query and return result
-	 * @param sql SQL query string
-	 * @return Result string from SQL server
+	 * Execute a batch of audit statements as one transaction (group commit) on the SQL server
 	 */
-	private String executeSQL(String sql) {
-		try (Socket socket = new Socket(sqlHost, sqlPort);
-			 PrintWriter out = new PrintWriter(socket.getOutputStream(), true);
-			 BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream()))) {
-			
-			// Send SQL with null terminator
-			out.print(sql + '\0');
-			out.flush();
-			
-			// Read response until null terminator
-			StringBuilder response = new StringBuilder();
-			int ch;
-			while ((ch = in.read()) != -1 && ch != '\0') {
-				response.append((char) ch);
+	private void executeBatch(List<String> statements) {
+		try {
+			List<String> statuses = sqlPool.executeBatch(statements);
+			for (int i = 0; i < statuses.size(); i++) {
+				if (!statuses.get(i).startsWith("SUCCESS")) {
+					System.err.println("SQL Error: " + statuses.get(i) + " (" + statements.get(i) + ")");
+				}
 			}
-			
-			return response.toString();
-			
-		} catch (Exception e) {
+		} catch (IOException e) {
 			System.err.println("SQL Error: " + e.getMessage());
-			return "ERROR:" + e.getMessage();
 		}
 	}
 
@@ -63,34 +73,81 @@ public class Database {
 		return str.replace("'", "''");
 	}
 
+	/**
+	 * Loads every registered user from the users table into memory, so after a restart returning users
+	 * are recognised (and their password checked) without asking the SQL server on login.
+	 * Call once at startup, before the server accepts connections.
+	 * @return the number of users loaded
+	 */
+	public int preloadUsers() {
+		long start = System.nanoTime();
+		int loaded = 0;
+		try (SqlRows rows = sqlPool.query("SELECT username, password FROM users")) {
+			while (rows.hasNext()) {
+				String[] row = rows.next();
+				if (row[0] != null && row[1] != null && userMap.putIfAbsent(row[0], new User(row[0], row[1])) == null) {
+					loaded++;
+				}
+			}
+		} catch (IOException | UncheckedIOException e) {
+			System.err.println("SQL Error: " + e.getMessage());
+		}
+		System.out.printf("Loaded %d registered users in %.1f ms%n", loaded, (System.nanoTime() - start) / 1e6);
+		return loaded;
+	}
+
 	public void addUser(User user) {
 		userMap.putIfAbsent(user.name, user);
-		connectionsIdMap.putIfAbsent(user.getConnectionId(), user);
+		if (user.isLoggedIn()) {
+			sessionShard(user.getConnectionId()).putIfAbsent(user.getConnectionId(), user);
+		}
+	}
+
+	private IntObjectMap<User> sessionShard(int connectionId) {
+		return sessions[connectionId & (SESSION_SHARDS - 1)];
 	}
 
 	public LoginStatus login(int connectionId, String username, String password) {
-		if (connectionsIdMap.containsKey(connectionId)) {
+		IntObjectMap<User> shard = sessionShard(connectionId);
+		if (shard.containsKey(connectionId)) {
 			return LoginStatus.CLIENT_ALREADY_CONNECTED;
 		}
-		if (addNewUserCase(connectionId, username, password)) {
+
+		// Registration is atomic per username: computeIfAbsent only locks that key, and the new user
+		// is logged in before anyone else can see it
+		boolean[] created = { false };
+		User user = userMap.computeIfAbsent(username, name -> {
+			User newUser = new User(connectionId, name, password);
+			newUser.login(connectionId);
+			created[0] = true;
+			return newUser;
+		});
+
+		if (created[0]) {
+			shard.put(connectionId, user);
 			// Log new user registration in SQL
 			String sql = String.format(
 				"INSERT INTO users (username, password, registration_date) VALUES ('%s', '%s', datetime('now'))",
 				escapeSql(username), escapeSql(password)
 			);
-			executeSQL(sql);
+			audit.submit(sql);
 			
 			// Log login
 			logLogin(username);
 			return LoginStatus.ADDED_NEW_USER;
-		} else {
-			LoginStatus status = userExistsCase(connectionId, username, password);
-			if (status == LoginStatus.LOGGED_IN_SUCCESSFULLY) {
-				// Log successful login in SQL
-				logLogin(username);
-			}
-			return status;
 		}
+
+		if (user.isLoggedIn()) {
+			return LoginStatus.ALREADY_LOGGED_IN;
+		} else if (!user.password.equals(password)) {
+			return LoginStatus.WRONG_PASSWORD;
+		} else if (!user.login(connectionId)) {
+			return LoginStatus.ALREADY_LOGGED_IN; // another connection won the race for this user
+		}
+		shard.put(connectionId, user);
+		// Log successful login in SQL
+		logLogin(username);
+		return LoginStatus.LOGGED_IN_SUCCESSFULLY;
 	}
 
 	private void logLogin(String username) {
@@ -98,41 +155,11 @@ public class Database {
 			"INSERT INTO login_history (username, login_time) VALUES ('%s', datetime('now'))",
 			escapeSql(username)
 		);
-		executeSQL(sql);
-	}
-
-	private LoginStatus userExistsCase(int connectionId, String username, String password) {
-		User user = userMap.get(username);
-		synchronized (user) {
-			if (user.isLoggedIn()) {
-				return LoginStatus.ALREADY_LOGGED_IN;
-			} else if (!user.password.equals(password)) {
-				return LoginStatus.WRONG_PASSWORD;
-			} else {
-				user.login();
-				user.setConnectionId(connectionId);
-				connectionsIdMap.put(connectionId, user);
-				return LoginStatus.LOGGED_IN_SUCCESSFULLY;
-			}
-		}
-	}
-
-	private boolean addNewUserCase(int connectionId, String username, String password) {
-		if (!userMap.containsKey(username)) {
-			synchronized (userMap) {
-				if (!userMap.containsKey(username)) {
-					User user = new User(connectionId, username, password);
-					user.login();
-					addUser(user);
-					return true;
-				}
-			}
-		}
-		return false;
+		audit.submit(sql);
 	}
 
 	public void logout(int connectionsId) {
-		User user = connectionsIdMap.get(connectionsId);
+		User user = sessionShard(connectionsId).remove(connectionsId);
 		if (user != null) {
 			// Log logout in SQL
 			String sql = String.format(
@@ -141,13 +168,10 @@ public class Database {
 				"ORDER BY login_time DESC LIMIT 1",
 				escapeSql(user.name)
 			);
-			executeSQL(sql);
+			audit.submit(sql);
 			
-			user.logout();
-			connectionsIdMap.remove(connectionsId);
-
-			// NEW: Clean up their pub/sub subscriptions!
-            removeUserFromAllChannels(connectionsId);
+			user.logout(connectionsId);
+			// את הרישומים לערוצים מנקה ConnectionsImpl.disconnect
 		}
 	}
 
@@ -163,13 +187,29 @@ public class Database {
 			"VALUES ('%s', '%s', datetime('now'), '%s')",
 			escapeSql(username), escapeSql(filename), escapeSql(gameChannel)
 		);
-		executeSQL(sql);
+		audit.submit(sql);
+	}
+
+	/**
+	 * Number of audit statements waiting to be written
+	 */
+	public int getAuditQueueDepth() {
+		return audit.depth();
+	}
+
+	/**
+	 * How long the oldest queued audit statement has been waiting, in milliseconds
+	 */
+	public long getAuditLagMillis() {
+		return audit.lagMillis();
 	}
 
 	/**
 	 * Generate and print server report using SQL queries
 	 */
 	public void printReport() {
+		// The report reads the audit tables, so let the queued writes land first
+		audit.flush(5_000);
 		System.out.println(repeat("=", 80));
 		System.out.println("SERVER REPORT - Generated at: " + java.time.LocalDateTime.now());
 		System.out.println(repeat("=", 80));
@@ -178,68 +218,62 @@ public class Database {
 		System.out.println("\n1. REGISTERED USERS:");
 		System.out.println(repeat("-", 80));
 		String usersSQL = "SELECT username, registration_date FROM users ORDER BY registration_date";
-		String usersResult = executeSQL(usersSQL);
-		if (usersResult.startsWith("SUCCESS")) {
-			String[] parts = usersResult.split("\\|");
-			if (parts.length > 1) {
-				for (int i = 1; i < parts.length; i++) {
-					System.out.println("   " + parts[i]);
-				}
-			} else {
+		try (SqlRows rows = sqlPool.query(usersSQL)) {
+			if (!rows.hasNext()) {
 				System.out.println("   No users registered");
 			}
+			while (rows.hasNext()) {
+				String[] row = rows.next();
+				System.out.println("   " + row[0] + ", " + row[1]);
+			}
+		} catch (IOException | UncheckedIOException e) {
+			System.err.println("SQL Error: " + e.getMessage());
 		}
 		
 		// Login history for each user
 		System.out.println("\n2. LOGIN HISTORY:");
 		System.out.println(repeat("-", 80));
 		String loginSQL = "SELECT username, login_time, logout_time FROM login_history ORDER BY username, login_time DESC";
-		String loginResult = executeSQL(loginSQL);
-		if (loginResult.startsWith("SUCCESS")) {
-			String[] parts = loginResult.split("\\|");
-			if (parts.length > 1) {
-				String currentUser = "";
-				for (int i = 1; i < parts.length; i++) {
-					String[] fields = parts[i].replace("(", "").replace(")", "").replace("'", "").split(", ");
-					if (fields.length >= 3) {
-						if (!fields[0].equals(currentUser)) {
-							currentUser = fields[0];
-							System.out.println("\n   User: " + currentUser);
-						}
-						System.out.println("      Login:  " + fields[1]);
-						System.out.println("      Logout: " + (fields[2].equals("None") ? "Still logged in" : fields[2]));
-					}
-				}
-			} else {
+		try (SqlRows rows = sqlPool.query(loginSQL)) {
+			if (!rows.hasNext()) {
 				System.out.println("   No login history");
 			}
+			String currentUser = null;
+			while (rows.hasNext()) {
+				String[] fields = rows.next();
+				if (!fields[0].equals(currentUser)) {
+					currentUser = fields[0];
+					System.out.println("\n   User: " + currentUser);
+				}
+				System.out.println("      Login:  " + fields[1]);
+				System.out.println("      Logout: " + (fields[2] == null ? "Still logged in" : fields[2]));
+			}
+		} catch (IOException | UncheckedIOException e) {
+			System.err.println("SQL Error: " + e.getMessage());
 		}
 		
 		// File uploads for each user
 		System.out.println("\n3. FILE UPLOADS:");
 		System.out.println(repeat("-", 80));
 		String filesSQL = "SELECT username, filename, upload_time, game_channel FROM file_tracking ORDER BY username, upload_time DESC";
-		String filesResult = executeSQL(filesSQL);
-		if (filesResult.startsWith("SUCCESS")) {
-			String[] parts = filesResult.split("\\|");
-			if (parts.length > 1) {
-				String currentUser = "";
-				for (int i = 1; i < parts.length; i++) {
-					String[] fields = parts[i].replace("(", "").replace(")", "").replace("'", "").split(", ");
-					if (fields.length >= 4) {
-						if (!fields[0].equals(currentUser)) {
-							currentUser = fields[0];
-							System.out.println("\n   User: " + currentUser);
-						}
-						System.out.println("      File: " + fields[1]);
-						System.out.println("      Time: " + fields[2]);
-						System.out.println("      Game: " + fields[3]);
-						System.out.println();
-					}
-				}
-			} else {
+		try (SqlRows rows = sqlPool.query(filesSQL)) {
+			if (!rows.hasNext()) {
 				System.out.println("   No files uploaded");
 			}
+			String currentUser = null;
+			while (rows.hasNext()) {
+				String[] fields = rows.next();
+				if (!fields[0].equals(currentUser)) {
+					currentUser = fields[0];
+					System.out.println("\n   User: " + currentUser);
+				}
+				System.out.println("      File: " + fields[1]);
+				System.out.println("      Time: " + fields[2]);
+				System.out.println("      Game: " + fields[3]);
+				System.out.println();
+			}
+		} catch (IOException | UncheckedIOException e) {
+			System.err.println("SQL Error: " + e.getMessage());
 		}
 		System.out.println(repeat("=", 80));
 	}
@@ -255,34 +289,4 @@ public class Database {
 	private static class Instance {
 		static Database instance = new Database();
 	}
-
-	// רישום משתמש לערוץ לפי הSubID שלו
-    public void subscribe(String channel, int connectionId, String subscriptionId) {
-        channelSubscriptions.putIfAbsent(channel, new ConcurrentHashMap<>());
-        channelSubscriptions.get(channel).put(connectionId, subscriptionId);
-    }
-
-    // הסרת רישום של משתמש מערוץ מסוים
-    public void unsubscribe(String channel, int connectionId) {
-        ConcurrentHashMap<Integer, String> subs = channelSubscriptions.get(channel);
-        if (subs != null) {
-            subs.remove(connectionId);
-            // Optional cleanup: remove the channel if it's empty
-            if (subs.isEmpty()) {
-                channelSubscriptions.remove(channel);
-            }
-        }
-    }
-
-    // מחזיר מפה של ID של משתמשים שמחוברים לערוץ מסוים -> לפי ה ID של הרישום שלהם
-    public ConcurrentHashMap<Integer, String> getChannelSubscribers(String channel) {
-        return channelSubscriptions.getOrDefault(channel, new ConcurrentHashMap<>());
-    }
-
-    // לפי connection ID מסירים משתמש מכל הערוצים אליהם הוא רשום
-    public void removeUserFromAllChannels(int connectionId) {
-        for (String channel : channelSubscriptions.keySet()) {
-            unsubscribe(channel, connectionId);
-        }
-    }
 }
\ No newline at end of file
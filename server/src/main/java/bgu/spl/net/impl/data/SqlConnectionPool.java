@@ -0,0 +1,215 @@
+package bgu.spl.net.impl.data;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * A small pool of long-lived connections to the Python SQL server.
+ * Every write goes out as one BATCH message, so the statements of a batch travel back to back in
+ * a single request and their statuses come back in order in a single reply. The server answers
+ * the null-terminated messages of a connection in order, one reply each.
+ */
+class SqlConnectionPool {
+
+	private final String host;
+	private final int port;
+	// Idle connections. A slot holds null until it is first used, then the connection is opened lazily
+	private final BlockingQueue<Connection> idle;
+
+	SqlConnectionPool(String host, int port, int size) {
+		this.host = host;
+		this.port = port;
+		this.idle = new ArrayBlockingQueue<>(Math.max(1, size));
+		for (int i = 0; i < Math.max(1, size); i++) {
+			idle.add(new Connection());
+		}
+	}
+
+	/**
+	 * Sends the statements as one BATCH message. The SQL server runs them all in a single
+	 * transaction (one commit instead of one per statement); a failing statement is rolled back
+	 * on its own and does not affect the others.
+	 * @return the status of each statement ("SUCCESS" or the error), in the order of the statements
+	 */
+	List<String> executeBatch(List<String> statements) throws IOException {
+		// BATCH <count>\n then <byte length>\n<statement> for each statement
+		ByteArrayOutputStream message = new ByteArrayOutputStream();
+		message.writeBytes(("BATCH " + statements.size() + "\n").getBytes(StandardCharsets.UTF_8));
+		for (String sql : statements) {
+			byte[] bytes = sql.getBytes(StandardCharsets.UTF_8);
+			message.writeBytes((bytes.length + "\n").getBytes(StandardCharsets.UTF_8));
+			message.writeBytes(bytes);
+		}
+
+		// One status per line, or a single ERROR line if the batch could not run at all
+		String reply = exchange(message.toByteArray());
+		List<String> statuses = Arrays.asList(reply.split("\n", -1));
+		if (statuses.size() != statements.size()) {
+			return Collections.nCopies(statements.size(), reply);
+		}
+		return statuses;
+	}
+
+	/**
+	 * Runs a SELECT and streams its rows back instead of returning them as one string.
+	 * The connection stays borrowed until the rows are closed.
+	 */
+	SqlRows query(String sql) throws IOException {
+		Connection connection = borrow();
+		try {
+			return connection.query(("QUERY " + sql).getBytes(StandardCharsets.UTF_8), () -> idle.add(connection));
+		} catch (IOException | RuntimeException e) {
+			idle.add(connection);
+			throw e;
+		}
+	}
+
+	private String exchange(byte[] message) throws IOException {
+		Connection connection = borrow();
+		try {
+			return connection.exchange(message);
+		} finally {
+			idle.add(connection);
+		}
+	}
+
+	private Connection borrow() throws IOException {
+		try {
+			return idle.take();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted while waiting for an SQL connection");
+		}
+	}
+
+	void close() {
+		for (Connection connection : idle) {
+			connection.disconnect();
+		}
+	}
+
+	private final class Connection {
+		private Socket socket;
+		private OutputStream out;
+		private InputStream in;
+		private byte[] reply = new byte[256];
+
+		String exchange(byte[] message) throws IOException {
+			boolean reused = socket != null;
+			int first;
+			try {
+				first = send(message);
+			} catch (IOException e) {
+				disconnect();
+				// A connection that sat idle may have been closed by the server; it did not answer
+				// anything yet, so try once more on a fresh one
+				if (!reused) {
+					throw e;
+				}
+				first = send(message);
+			}
+			try {
+				return readReply(first);
+			} catch (IOException e) {
+				disconnect(); // the reply was cut off, so the connection can't be reused
+				throw e;
+			}
+		}
+
+		SqlRows query(byte[] message, Runnable release) throws IOException {
+			boolean reused = socket != null;
+			int first;
+			try {
+				first = send(message);
+			} catch (IOException e) {
+				disconnect();
+				if (!reused) {
+					throw e;
+				}
+				first = send(message);
+			}
+
+			if (first != 'R') {
+				// Not a result but a plain error reply, e.g. "ERROR: no such table"
+				throw new IOException(readReply(first));
+			}
+			int columns;
+			try {
+				// "ROWS <columns>\n"
+				int b;
+				while ((b = in.read()) != ' ') { // skip "OWS"
+					if (b == -1) {
+						throw new IOException("SQL server closed the connection");
+					}
+				}
+				columns = SqlRows.readNumber(in, '\n');
+			} catch (IOException e) {
+				disconnect(); // the header was cut off, so the connection can't be reused
+				throw e;
+			}
+			return new SqlRows(in, columns, broken -> {
+				if (broken) {
+					disconnect();
+				}
+				release.run();
+			});
+		}
+
+		// Sends one message and waits for the first byte of its reply
+		private int send(byte[] message) throws IOException {
+			connect();
+			out.write(message);
+			out.write('\0');
+			out.flush();
+			int first = in.read();
+			if (first == -1) {
+				throw new IOException("SQL server closed the connection");
+			}
+			return first;
+		}
+
+		private void connect() throws IOException {
+			if (socket == null) {
+				socket = new Socket(host, port);
+				socket.setTcpNoDelay(true);
+				out = new BufferedOutputStream(socket.getOutputStream());
+				in = new BufferedInputStream(socket.getInputStream());
+			}
+		}
+
+		// Reads one reply up to its null terminator, starting from its first byte that was already read
+		private String readReply(int first) throws IOException {
+			int length = 0;
+			for (int b = first; b != '\0'; b = in.read()) {
+				if (b == -1) {
+					throw new IOException("SQL server closed the connection");
+				}
+				if (length == reply.length) {
+					reply = Arrays.copyOf(reply, length * 2);
+				}
+				reply[length++] = (byte) b;
+			}
+			return new String(reply, 0, length, StandardCharsets.UTF_8);
+		}
+
+		void disconnect() {
+			if (socket != null) {
+				try {
+					socket.close();
+				} catch (IOException ignored) {}
+				socket = null;
+			}
+		}
+	}
+}
@@ -0,0 +1,151 @@
+package bgu.spl.net.impl.data;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.function.Consumer;
+
+/**
+ * The rows of a QUERY result, read from the SQL connection one at a time as they are iterated,
+ * so only the current row is ever held in memory.
+ *
+ * Result format (after the "ROWS &lt;columns&gt;\n" header):
+ *   R &lt;value&gt;... - a row, one value per column
+ *   E            - end of the result
+ *   X &lt;value&gt;    - the query failed part way through; the value is the error
+ * followed by the null terminator. A value is "&lt;byte length&gt;\n&lt;UTF-8 bytes&gt;", with length -1 for NULL.
+ *
+ * The connection stays borrowed until the rows are closed, so always use try-with-resources.
+ */
+class SqlRows implements Iterator<String[]>, AutoCloseable {
+
+	private final InputStream in;
+	private final int columns;
+	private final Consumer<Boolean> release; // called once, with true if the connection can't be reused
+	private byte[] value = new byte[256];
+	private String[] next;
+	private boolean done = false;
+
+	SqlRows(InputStream in, int columns, Consumer<Boolean> release) {
+		this.in = in;
+		this.columns = columns;
+		this.release = release;
+	}
+
+	@Override
+	public boolean hasNext() {
+		if (next == null && !done) {
+			next = readRow();
+		}
+		return next != null;
+	}
+
+	@Override
+	public String[] next() {
+		if (!hasNext()) {
+			throw new NoSuchElementException();
+		}
+		String[] row = next;
+		next = null;
+		return row;
+	}
+
+	/**
+	 * Skips the rows that were not read, so the connection can serve the next statement.
+	 */
+	@Override
+	public void close() {
+		next = null;
+		try {
+			while (!done && readRow() != null) {
+				// discard
+			}
+		} catch (UncheckedIOException ignored) {
+			// already released by readRow
+		}
+	}
+
+	private String[] readRow() {
+		try {
+			int marker = in.read();
+			if (marker == 'R') {
+				String[] row = new String[columns];
+				for (int i = 0; i < columns; i++) {
+					row[i] = readValue();
+				}
+				return row;
+			}
+			if (marker == 'E') {
+				readTerminator();
+				finish(false);
+				return null;
+			}
+			if (marker == 'X') {
+				String error = readValue();
+				readTerminator();
+				finish(false);
+				throw new UncheckedIOException(new IOException(error));
+			}
+			throw new IOException(marker == -1 ? "SQL server closed the connection" : "Malformed SQL result");
+		} catch (IOException e) {
+			finish(true);
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	private String readValue() throws IOException {
+		int length = readNumber(in, '\n');
+		if (length < 0) {
+			return null;
+		}
+		if (length > value.length) {
+			value = Arrays.copyOf(value, Math.max(length, value.length * 2));
+		}
+		int read = 0;
+		while (read < length) {
+			int n = in.read(value, read, length - read);
+			if (n == -1) {
+				throw new IOException("SQL server closed the connection");
+			}
+			read += n;
+		}
+		return new String(value, 0, length, StandardCharsets.UTF_8);
+	}
+
+	private void readTerminator() throws IOException {
+		if (in.read() != '\0') {
+			throw new IOException("Malformed SQL result");
+		}
+	}
+
+	private void finish(boolean broken) {
+		if (!done) {
+			done = true;
+			release.accept(broken);
+		}
+	}
+
+	/**
+	 * Reads a (possibly negative) decimal number up to and including the given end byte.
+	 */
+	static int readNumber(InputStream in, char end) throws IOException {
+		int b = in.read();
+		boolean negative = b == '-';
+		if (negative) {
+			b = in.read();
+		}
+		int number = 0;
+		while (b != end) {
+			if (b < '0' || b > '9') {
+				throw new IOException("Malformed SQL result");
+			}
+			number = number * 10 + (b - '0');
+			b = in.read();
+		}
+		return negative ? -number : number;
+	}
+}
@@ -1,10 +1,16 @@
 package bgu.spl.net.impl.data;
 
+import java.util.concurrent.atomic.AtomicInteger;
+
 public class User {
+	private static final int LOGGED_OUT = Integer.MIN_VALUE;
+
 	public final String name;
 	public final String password;
-	private int connectionId;
-	private boolean isLoggedIn = false;
+	// The connection id of the active session, or LOGGED_OUT. Changed only by CAS,
+	// so two logins of the same user can't both succeed and no lock is needed
+	private final AtomicInteger session = new AtomicInteger(LOGGED_OUT);
+	private volatile int connectionId;
 
 	public User(int connectionId, String name, String password) {
 		this.connectionId = connectionId;
@@ -12,25 +18,39 @@ public class User {
 		this.password = password;
 	}
 
+	/**
+	 * A registered user that is not logged in (loaded from the users table)
+	 */
+	public User(String name, String password) {
+		this(-1, name, password);
+	}
+
 	public boolean isLoggedIn() {
-		return isLoggedIn;
+		return session.get() != LOGGED_OUT;
 	}
 
-	public void login() {
-		isLoggedIn = true;
+	/**
+	 * Starts a session for the given connection.
+	 * @return false if the user already has an active session
+	 */
+	public boolean login(int connectionId) {
+		if (!session.compareAndSet(LOGGED_OUT, connectionId)) {
+			return false;
+		}
+		this.connectionId = connectionId;
+		return true;
 	}
 
-	public void logout() {
-		isLoggedIn = false;
+	/**
+	 * Ends the session, but only if it still belongs to the given connection.
+	 */
+	public boolean logout(int connectionId) {
+		return session.compareAndSet(connectionId, LOGGED_OUT);
 	}
 
 	public int getConnectionId() {
 		return connectionId;
 	}
 
-	public void setConnectionId(int connectionId) {
-		this.connectionId = connectionId;
-	}
-
 
 }
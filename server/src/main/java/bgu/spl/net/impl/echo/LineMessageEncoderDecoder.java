@@ -1,8 +1,10 @@
 package bgu.spl.net.impl.echo;
 
 import bgu.spl.net.api.MessageEncoderDecoder;
+import java.nio.ByteBuffer;
 import java.nio.charset.StandardCharsets;
 import java.util.Arrays;
+import java.util.function.Consumer;
 
 public class LineMessageEncoderDecoder implements MessageEncoderDecoder<String> {
 
@@ -21,19 +23,46 @@ public class LineMessageEncoderDecoder implements MessageEncoderDecoder<String>
         return null; //not a line yet
     }
 
+    @Override
+    public void decode(ByteBuffer buf, Consumer<String> out) {
+        //copy the whole buffer at once and then look for line endings in the array
+        int from = len;
+        int n = buf.remaining();
+        ensureCapacity(len + n);
+        buf.get(bytes, len, n);
+        len += n;
+
+        int lineStart = 0;
+        for (int i = from; i < len; i++) {
+            if (bytes[i] == '\n') {
+                out.accept(new String(bytes, lineStart, i - lineStart, StandardCharsets.UTF_8));
+                lineStart = i + 1;
+            }
+        }
+
+        //keep the beginning of the next line
+        if (lineStart > 0) {
+            len -= lineStart;
+            System.arraycopy(bytes, lineStart, bytes, 0, len);
+        }
+    }
+
     @Override
     public byte[] encode(String message) {
         return (message + "\n").getBytes(); //uses utf8 by default
     }
 
     private void pushByte(byte nextByte) {
-        if (len >= bytes.length) {
-            bytes = Arrays.copyOf(bytes, len * 2);
-        }
-
+        ensureCapacity(len + 1);
         bytes[len++] = nextByte;
     }
 
+    private void ensureCapacity(int capacity) {
+        if (capacity > bytes.length) {
+            bytes = Arrays.copyOf(bytes, Math.max(capacity, bytes.length * 2));
+        }
+    }
+
     private String popString() {
         //notice that we explicitly requesting that the string will be decoded from UTF-8
         //this is not actually required as it is the default encoding in java.
@@ -1,19 +1,29 @@
 package bgu.spl.net.impl.stomp;
 
 import bgu.spl.net.api.MessageEncoderDecoder;
+import java.nio.ByteBuffer;
 import java.nio.charset.StandardCharsets;
 import java.util.Arrays;
+import java.util.Map;
+import java.util.function.Consumer;
+import java.util.function.IntFunction;
 
-public class StompEncoderDecoder implements MessageEncoderDecoder<String> {
+public class StompEncoderDecoder implements MessageEncoderDecoder<StompFrame> {
 
-    private byte[] bytes = new byte[1 << 10]; // Start with 1k buffer
+    private static final int INITIAL_SIZE = 1 << 10; // Start with 1k buffer
+    private static final int RETAIN_LIMIT = 1 << 16; // אחרי פריים חריג מעל 64k חוזרים לגודל ההתחלתי
+
+    private byte[] bytes = new byte[INITIAL_SIZE];
     private int len = 0;
 
+    // פריים אחד שמצביע כל פעם על הבתים של הפריים האחרון שפוענח, בלי להעתיק ובלי String
+    private final StompFrame frame = new StompFrame();
+
     @Override
-    public String decodeNextByte(byte nextByte) {
+    public StompFrame decodeNextByte(byte nextByte) {
         // פריימים נגמרים בנאל בייט, אם מזהים אותו יש פריים שלם
         if (nextByte == '\u0000') {
-            return popString();
+            return popFrame();
         }
 
         pushByte(nextByte);
@@ -21,21 +31,148 @@ public class StompEncoderDecoder implements MessageEncoderDecoder<String> {
     }
 
     @Override
-    public byte[] encode(String message) {
+    public void decode(ByteBuffer buf, Consumer<StompFrame> out) {
+        // מעתיקים את כל הבאפר בבת אחת ואז סורקים את המערך אחרי נאל בייטים
+        int from = len;
+        int n = buf.remaining();
+        ensureCapacity(len + n);
+        buf.get(bytes, len, n);
+        len += n;
+
+        int frameStart = 0;
+        for (int i = from; i < len; i++) {
+            if (bytes[i] == '\u0000') {
+                frame.wrap(bytes, frameStart, i - frameStart);
+                out.accept(frame);
+                frameStart = i + 1;
+            }
+        }
+
+        // מה שנשאר אחרי הנאל האחרון הוא תחילת הפריים הבא
+        if (frameStart > 0) {
+            len -= frameStart;
+            System.arraycopy(bytes, frameStart, bytes, 0, len);
+            shrinkIfOversized();
+        }
+    }
+
+    @Override
+    public StompFrame copy(StompFrame message) {
+        return message.copy(); // הפריים שלנו מצביע על המערך המשותף ויידרס בפריים הבא
+    }
+
+    @Override
+    public byte[] encode(StompFrame message) {
+        if (message.isParsed()) {
+            return (message.toString() + '\u0000').getBytes(StandardCharsets.UTF_8);
+        }
         // בStompFrame אנחנו כבר מוסיפים את הנאל בייט אז כששולחים כאן לא צריך להוסיף שוב
-        return message.getBytes(StandardCharsets.UTF_8);
+        return message.toString().getBytes(StandardCharsets.UTF_8);
     }
 
-    private void pushByte(byte nextByte) {
-        if (len >= bytes.length) {
-            bytes = Arrays.copyOf(bytes, len * 2);
+    @Override
+    public ByteBuffer encode(StompFrame message, IntFunction<ByteBuffer> alloc) {
+        if (message.isParsed()) {
+            ByteBuffer buf = alloc.apply(message.rawLength() + 1);
+            buf.put(message.rawBytes(), message.rawStart(), message.rawLength()).put((byte) '\u0000');
+            buf.flip();
+            return buf;
+        }
+
+        // כותבים את הפריים (כמו StompFrame.toString) ישר לבאפר בקידוד UTF-8, בלי String ביניים.
+        // אין כאן מצב פנימי, כי encode נקרא מכל טרד ששולח לחיבור
+        String body = message.getBody();
+        boolean hasBody = body != null && !body.isEmpty();
+        int size = utf8Length(message.getCommand()) + 2 + (hasBody ? utf8Length(body) + 1 : 0) + 1;
+        for (Map.Entry<String, String> header : message.getHeaders().entrySet()) {
+            size += utf8Length(header.getKey()) + utf8Length(header.getValue()) + 2;
         }
+
+        ByteBuffer buf = alloc.apply(size);
+        writeUtf8(message.getCommand(), buf);
+        buf.put((byte) '\n');
+        for (Map.Entry<String, String> header : message.getHeaders().entrySet()) {
+            writeUtf8(header.getKey(), buf);
+            buf.put((byte) ':');
+            writeUtf8(header.getValue(), buf);
+            buf.put((byte) '\n');
+        }
+        buf.put((byte) '\n');
+        if (hasBody) {
+            writeUtf8(body, buf);
+            buf.put((byte) '\n');
+        }
+        buf.put((byte) '\u0000');
+        buf.flip();
+        return buf;
+    }
+
+    private static void writeUtf8(String text, ByteBuffer buf) {
+        int n = text.length();
+        for (int i = 0; i < n; i++) {
+            char c = text.charAt(i);
+            if (c < 0x80) {
+                buf.put((byte) c);
+            } else if (c < 0x800) {
+                buf.put((byte) (0xC0 | (c >> 6)));
+                buf.put((byte) (0x80 | (c & 0x3F)));
+            } else if (Character.isHighSurrogate(c) && i + 1 < n && Character.isLowSurrogate(text.charAt(i + 1))) {
+                int codePoint = Character.toCodePoint(c, text.charAt(++i));
+                buf.put((byte) (0xF0 | (codePoint >> 18)));
+                buf.put((byte) (0x80 | ((codePoint >> 12) & 0x3F)));
+                buf.put((byte) (0x80 | ((codePoint >> 6) & 0x3F)));
+                buf.put((byte) (0x80 | (codePoint & 0x3F)));
+            } else if (Character.isSurrogate(c)) {
+                buf.put((byte) '?'); // כמו getBytes - surrogate בודד מוחלף ב-?
+            } else {
+                buf.put((byte) (0xE0 | (c >> 12)));
+                buf.put((byte) (0x80 | ((c >> 6) & 0x3F)));
+                buf.put((byte) (0x80 | (c & 0x3F)));
+            }
+        }
+    }
+
+    private static int utf8Length(String message) {
+        int n = message.length();
+        int length = n;
+        for (int i = 0; i < n; i++) {
+            char c = message.charAt(i);
+            if (c >= 0x800) {
+                if (Character.isHighSurrogate(c) && i + 1 < n && Character.isLowSurrogate(message.charAt(i + 1))) {
+                    length += 2; // 4 בתים לשני תווים
+                    i++;
+                } else if (!Character.isSurrogate(c)) {
+                    length += 2;
+                }
+            } else if (c >= 0x80) {
+                length += 1;
+            }
+        }
+        return length;
+    }
+
+    private void pushByte(byte nextByte) {
+        ensureCapacity(len + 1);
         bytes[len++] = nextByte;
     }
 
-    private String popString() {
-        String result = new String(bytes, 0, len, StandardCharsets.UTF_8);
+    private void ensureCapacity(int capacity) {
+        if (capacity > bytes.length) {
+            bytes = Arrays.copyOf(bytes, Math.max(capacity, bytes.length * 2));
+        }
+    }
+
+    private void shrinkIfOversized() {
+        if (bytes.length > RETAIN_LIMIT && len <= INITIAL_SIZE) {
+            bytes = Arrays.copyOf(bytes, INITIAL_SIZE);
+        }
+    }
+
+    private StompFrame popFrame() {
+        // מקטינים לפני שהפריים מצביע על המערך, כדי שלא יישאר מצביע למערך הישן
+        shrinkIfOversized();
+        frame.wrap(bytes, 0, len);
         len = 0;
-        return result;
+        return frame;
     }
 }
\ No newline at end of file
@@ -1,30 +1,135 @@
 package bgu.spl.net.impl.stomp;
 
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.Map;
 
+/**
+ * A STOMP frame in one of two forms:
+ * <ul>
+ * <li>a frame built by the server (command, header map and body), used for the frames we send;</li>
+ * <li>a parsed view over the raw bytes of a received frame. The view is a reusable flyweight:
+ * StompEncoderDecoder re-points the same instance at every frame it decodes, headers are only
+ * located (as offsets into the bytes) when first asked for, and the body is exposed as a slice.
+ * A parsed frame is only valid until the decoder produces the next one.</li>
+ * </ul>
+ */
 public class StompFrame {
+
+    // Canonical command strings, so recognising a command never allocates
+    private static final String[] COMMANDS = {
+        "CONNECT", "STOMP", "SEND", "SUBSCRIBE", "UNSUBSCRIBE", "DISCONNECT", "ACK", "NACK",
+        "BEGIN", "COMMIT", "ABORT", "CONNECTED", "MESSAGE", "RECEIPT", "ERROR"
+    };
+
     private String command;
     private final Map<String, String> headers;
     private String body;
 
+    // --- Parsed view (raw == null for built frames) ---
+    private byte[] raw;
+    private int rawStart;
+    private int rawEnd;
+    private int headersStart;
+    private int headerCount = -1; // -1 until the headers are located
+    private int[] headerOffsets = new int[4 * 8]; // keyStart, keyEnd, valueStart, valueEnd per header
+    private int bodyStart;
+    private int bodyEnd;
+
     public StompFrame(String command) {
         this.command = command;
-        this.headers = new HashMap<>();
+        this.headers = new LinkedHashMap<>();
         this.body = "";
     }
 
+    /*package*/ StompFrame() {
+        this.headers = null;
+    }
+
     // --- Getters and Setters ---
     public String getCommand() { return command; }
-    public String getHeader(String key) { return headers.get(key); }
-    public Map<String, String> getHeaders() { return headers; }
-    public String getBody() { return body; }
-    
-    public void addHeader(String key, String value) { 
-        headers.put(key, value); 
+
+    public String getHeader(String key) {
+        if (raw == null) {
+            return headers.get(key);
+        }
+        locateHeaders();
+        // Like the map we used to fill, a repeated header keeps its last value
+        for (int i = headerCount - 1; i >= 0; i--) {
+            int keyStart = headerOffsets[4 * i];
+            int keyEnd = headerOffsets[4 * i + 1];
+            if (keyEquals(keyStart, keyEnd, key)) {
+                int valueStart = headerOffsets[4 * i + 2];
+                return new String(raw, valueStart, headerOffsets[4 * i + 3] - valueStart, StandardCharsets.UTF_8);
+            }
+        }
+        return null;
+    }
+
+    public Map<String, String> getHeaders() {
+        if (raw == null) {
+            return headers;
+        }
+        locateHeaders();
+        Map<String, String> result = new HashMap<>();
+        for (int i = 0; i < headerCount; i++) {
+            int keyStart = headerOffsets[4 * i];
+            int valueStart = headerOffsets[4 * i + 2];
+            result.put(new String(raw, keyStart, headerOffsets[4 * i + 1] - keyStart, StandardCharsets.UTF_8),
+                    new String(raw, valueStart, headerOffsets[4 * i + 3] - valueStart, StandardCharsets.UTF_8));
+        }
+        return result;
+    }
+
+    public String getBody() {
+        if (raw == null) {
+            return body;
+        }
+        locateHeaders();
+        return new String(raw, bodyStart, bodyEnd - bodyStart, StandardCharsets.UTF_8);
     }
-    public void setBody(String body) { 
-        this.body = body; 
+
+    /**
+     * @return the body bytes without copying them. For a parsed frame this is a slice of the
+     * decoder's buffer, so it must be consumed before the next frame is decoded.
+     */
+    public ByteBuffer body() {
+        if (raw == null) {
+            return ByteBuffer.wrap(body.getBytes(StandardCharsets.UTF_8));
+        }
+        locateHeaders();
+        return ByteBuffer.wrap(raw, bodyStart, bodyEnd - bodyStart).slice();
+    }
+
+    /**
+     * Checks whether the body contains the given (ASCII) text, without decoding the body.
+     */
+    public boolean bodyContains(String text) {
+        if (raw == null) {
+            return body.contains(text);
+        }
+        locateHeaders();
+        int n = text.length();
+        for (int i = bodyStart; i <= bodyEnd - n; i++) {
+            int j = 0;
+            while (j < n && raw[i + j] == text.charAt(j)) {
+                j++;
+            }
+            if (j == n) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    public void addHeader(String key, String value) {
+        headers.put(key, value);
+    }
+    public void setBody(String body) {
+        this.body = body;
     }
 
     /**
@@ -36,63 +141,171 @@ public class StompFrame {
             message = message.substring(0, message.length() - 1);
         }
 
-        String[] lines = message.split("\n");
-        if (lines.length == 0) {
-            return new StompFrame("UNKNOWN");
+        byte[] bytes = message.getBytes(StandardCharsets.UTF_8);
+        StompFrame frame = new StompFrame();
+        frame.wrap(bytes, 0, bytes.length);
+        return frame;
+    }
+
+    /**
+     * Points this (parsed) frame at the bytes of a newly received frame, without the null terminator.
+     * Only the command line is read here; the headers are located lazily.
+     */
+    /*package*/ void wrap(byte[] bytes, int offset, int length) {
+        raw = bytes;
+        rawStart = offset;
+        rawEnd = offset + length;
+        headerCount = -1;
+
+        // 1. The first line is always the STOMP command (EOLs left over between frames are skipped)
+        int p = offset;
+        while (p < rawEnd && (raw[p] == '\n' || raw[p] == '\r')) {
+            p++;
         }
+        int lineEnd = indexOfNewLine(p);
+        int commandStart = trimStart(p, lineEnd);
+        command = recogniseCommand(commandStart, trimEnd(commandStart, lineEnd));
+        headersStart = Math.min(lineEnd + 1, rawEnd);
+    }
 
-        // 1. The first line is always the STOMP command
-        StompFrame frame = new StompFrame(lines[0].trim());
-        int i = 1;
+    /**
+     * @return for a parsed frame, a new parsed frame over its own copy of the bytes, which stays
+     * valid after the decoder moves on. A built frame is returned as is.
+     */
+    public StompFrame copy() {
+        if (raw == null) {
+            return this;
+        }
+        StompFrame copy = new StompFrame();
+        copy.wrap(Arrays.copyOfRange(raw, rawStart, rawEnd), 0, rawEnd - rawStart);
+        return copy;
+    }
+
+    /*package*/ boolean isParsed() {
+        return raw != null;
+    }
 
-        // 2. Parse the headers until we hit an empty line
-        while (i < lines.length && !lines[i].trim().isEmpty()) {
-            String line = lines[i];
-            int colonIndex = line.indexOf(':');
-            if (colonIndex != -1) {
+    /*package*/ byte[] rawBytes() {
+        return raw;
+    }
+
+    /*package*/ int rawStart() {
+        return rawStart;
+    }
+
+    /*package*/ int rawLength() {
+        return rawEnd - rawStart;
+    }
+
+    // 2. Locate the headers until we hit an empty line, then 3. everything else is the body
+    private void locateHeaders() {
+        if (headerCount >= 0) {
+            return;
+        }
+        headerCount = 0;
+        int p = headersStart;
+        while (p < rawEnd) {
+            int lineEnd = indexOfNewLine(p);
+            int start = trimStart(p, lineEnd);
+            int end = trimEnd(start, lineEnd);
+            if (start == end) {
+                p = lineEnd + 1; // Skip the empty line
+                break;
+            }
+
+            int colon = start;
+            while (colon < end && raw[colon] != ':') {
+                colon++;
+            }
+            if (colon < end) {
                 // Split by the first colon to get key and value
-                String key = line.substring(0, colonIndex).trim();
-                String value = line.substring(colonIndex + 1).trim();
-                frame.addHeader(key, value);
+                if (4 * headerCount + 4 > headerOffsets.length) {
+                    headerOffsets = Arrays.copyOf(headerOffsets, headerOffsets.length * 2);
+                }
+                int valueStart = trimStart(colon + 1, end);
+                headerOffsets[4 * headerCount] = start;
+                headerOffsets[4 * headerCount + 1] = trimEnd(start, colon);
+                headerOffsets[4 * headerCount + 2] = valueStart;
+                headerOffsets[4 * headerCount + 3] = trimEnd(valueStart, end);
+                headerCount++;
             }
+            p = lineEnd + 1;
+        }
+
+        // Trailing line breaks are not part of the body
+        bodyStart = Math.min(p, rawEnd);
+        bodyEnd = rawEnd;
+        while (bodyEnd > bodyStart && raw[bodyEnd - 1] == '\n') {
+            bodyEnd--;
+        }
+    }
+
+    private int indexOfNewLine(int from) {
+        int i = from;
+        while (i < rawEnd && raw[i] != '\n') {
             i++;
         }
+        return i;
+    }
+
+    private int trimStart(int from, int to) {
+        while (from < to && raw[from] <= ' ' && raw[from] >= 0) {
+            from++;
+        }
+        return from;
+    }
 
-        // 3. Skip the empty line
-        i++; 
+    private int trimEnd(int from, int to) {
+        while (to > from && raw[to - 1] <= ' ' && raw[to - 1] >= 0) {
+            to--;
+        }
+        return to;
+    }
 
-        // 4. Everything else is the body
-        StringBuilder bodyBuilder = new StringBuilder();
-        while (i < lines.length) {
-            bodyBuilder.append(lines[i]);
-            if (i < lines.length - 1) {
-                bodyBuilder.append("\n"); // Preserve line breaks in the body
+    private boolean keyEquals(int start, int end, String key) {
+        if (end - start != key.length()) {
+            return false;
+        }
+        for (int i = 0; i < key.length(); i++) {
+            if (raw[start + i] != key.charAt(i)) {
+                return false;
             }
-            i++;
         }
-        frame.setBody(bodyBuilder.toString());
+        return true;
+    }
 
-        return frame;
+    private String recogniseCommand(int start, int end) {
+        for (String candidate : COMMANDS) {
+            if (keyEquals(start, end, candidate)) {
+                return candidate;
+            }
+        }
+        return new String(raw, start, end - start, StandardCharsets.UTF_8);
     }
 
     /**
      * Converts the StompFrame back into a raw STOMP string so it can be sent over the socket.
+     * For a parsed frame this is the text exactly as it was received, without the null terminator.
      */
     @Override
     public String toString() {
+        if (raw != null) {
+            return new String(raw, rawStart, rawEnd - rawStart, StandardCharsets.UTF_8);
+        }
+
         StringBuilder sb = new StringBuilder();
         sb.append(command).append("\n");
-        
+
         for (Map.Entry<String, String> entry : headers.entrySet()) {
             sb.append(entry.getKey()).append(":").append(entry.getValue()).append("\n");
         }
-        
+
         sb.append("\n"); // Blank line separating headers and body
-        
+
         if (body != null && !body.isEmpty()) {
             sb.append(body).append("\n");
         }
-        
+
         sb.append("\u0000"); // Frame MUST end with a null character
         return sb.toString();
     }
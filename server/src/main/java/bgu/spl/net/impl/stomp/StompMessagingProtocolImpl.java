@@ -7,22 +7,18 @@ import bgu.spl.net.impl.data.Database;
 import bgu.spl.net.impl.data.LoginStatus;
 
 import java.util.Arrays;
-import java.util.HashMap;
 import java.util.List;
-import java.util.Map;
-import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.atomic.AtomicInteger;
 
-public class StompMessagingProtocolImpl implements StompMessagingProtocol<String> {
+public class StompMessagingProtocolImpl implements StompMessagingProtocol<StompFrame> {
 
     private int connectionId;
-    private Connections<String> connections;
+    private Connections<StompFrame> connections;
     private boolean shouldTerminate = false;
     
     private String loggedInUser = null; 
-    private final Map<String, String> subIdToChannel = new HashMap<>();
+    // המסלולים שהלקוח שידר אליהם מאז הניתוק הקודם (ביט לכל מסלול), ראו handleDisconnect
+    private long publishedLanes = 0;
     private final Database database; 
-    private static final AtomicInteger messageIdCounter = new AtomicInteger(1);
 
     private static final List<String> VALID_COMMANDS = Arrays.asList("CONNECT", "SEND", "SUBSCRIBE", "UNSUBSCRIBE", "DISCONNECT");
 
@@ -31,15 +27,19 @@ public class StompMessagingProtocolImpl implements StompMessagingProtocol<String
     }
 
     @Override
-    public void start(int connectionId, Connections<String> connections) {
+    public void start(int connectionId, Connections<StompFrame> connections) {
         this.connectionId = connectionId;
         this.connections = connections;
     }
 
 
     @Override
-    public String process(String message) { //יושב על הפרוסס שהוספנו לסטומפ פרוטוקול
-        StompFrame frame = StompFrame.parse(message); 
+    public StompFrame process(String message) { //יושב על הפרוסס שהוספנו לסטומפ פרוטוקול
+        return process(StompFrame.parse(message));
+    }
+
+    @Override
+    public StompFrame process(StompFrame frame) { // ה-decoder כבר מחזיר פריים מפוענח, בלי String באמצע
         if (!(VALID_COMMANDS.contains(frame.getCommand()))) {
             sendError("Invalid command", "You must use a valid command", frame);
             return null;
@@ -79,6 +79,38 @@ public class StompMessagingProtocolImpl implements StompMessagingProtocol<String
         return shouldTerminate;
     }
 
+    @Override
+    public void connectionLost() {
+        // בלי זה המשתמש נשאר מחובר והמנויים שלו נשארים ברשימות של הערוצים
+        if (shouldTerminate || connections == null) {
+            return;
+        }
+        if (loggedInUser != null) {
+            database.logout(connectionId);
+        }
+        connections.disconnect(connectionId);
+        shouldTerminate = true;
+    }
+
+    @Override
+    public boolean isCheap(StompFrame frame) {
+        // רק עדכון של מפות המנויים ולכל היותר RECEIPT - בלי SQL ובלי שידור.
+        // פריים שייגמר ב-sendError לא זול: הוא עובר ב-database.logout, שיכול להיחסם על תור ה-audit
+        if (loggedInUser == null) {
+            return false;
+        }
+        switch (frame.getCommand()) {
+            case "SUBSCRIBE":
+                return frame.getHeader("destination") != null && isSubscriptionId(frame.getHeader("id"));
+            case "UNSUBSCRIBE":
+                String id = frame.getHeader("id");
+                return isSubscriptionId(id)
+                        && ((ConnectionsImpl<StompFrame>) connections).hasSubscription(connectionId, Integer.parseInt(id));
+            default:
+                return false;
+        }
+    }
+
     //-----STOMP Command Handlers-----
 
     private void handleConnect(StompFrame frame) {
@@ -102,7 +134,8 @@ public class StompMessagingProtocolImpl implements StompMessagingProtocol<String
 
         if (status == LoginStatus.LOGGED_IN_SUCCESSFULLY || status == LoginStatus.ADDED_NEW_USER) {
             loggedInUser = login;
-            String response = "CONNECTED\nversion:1.5\n\n\u0000"; 
+            StompFrame response = new StompFrame("CONNECTED");
+            response.addHeader("version", "1.5");
             connections.send(connectionId, response);
         } else if (status == LoginStatus.WRONG_PASSWORD) {
             sendError("Wrong password", "The password provided is incorrect.", frame); 
@@ -120,12 +153,14 @@ public class StompMessagingProtocolImpl implements StompMessagingProtocol<String
             return;
         }
 
-        // מיפוי מקומי ולבסיס הנתונים
-        subIdToChannel.put(id, destination);
-        database.subscribe(destination, connectionId, id);
+        if (!isSubscriptionId(id)) {
+            sendError("Malformed frame", "SUBSCRIBE id must be a number.", frame);
+            return;
+        }
 
+        // הרישום נשמר רק באינדקס של ConnectionsImpl - ממנו גם משדרים
         int subId = Integer.parseInt(id); // המרת ה-ID מההדר למספר
-        ((ConnectionsImpl<String>)connections).addSubscription(connectionId, subId, destination);
+        ((ConnectionsImpl<StompFrame>)connections).addSubscription(connectionId, subId, destination);
         
         sendReceiptIfNeeded(frame);
     }
@@ -137,11 +172,13 @@ public class StompMessagingProtocolImpl implements StompMessagingProtocol<String
             sendError("Malformed frame", "UNSUBSCRIBE missing id header.", frame);
             return;
         }
+        if (!isSubscriptionId(id)) {
+            sendError("Malformed frame", "UNSUBSCRIBE id must be a number.", frame);
+            return;
+        }
 
-        String channel = subIdToChannel.remove(id);
-        if (channel != null) {
-            database.unsubscribe(channel, connectionId);
-        } else {
+        String channel = ((ConnectionsImpl<StompFrame>) connections).removeSubscription(connectionId, Integer.parseInt(id));
+        if (channel == null) {
             sendError("Invalid subscription", "No active subscription found for id " + id, frame);
             return;
         }
@@ -151,7 +188,6 @@ public class StompMessagingProtocolImpl implements StompMessagingProtocol<String
 
     private void handleSend(StompFrame frame) {
         String destination = frame.getHeader("destination");
-        String body = frame.getBody();
 
         if (destination == null) {
             sendError("Malformed frame", "SEND missing destination header.", frame);
@@ -159,38 +195,30 @@ public class StompMessagingProtocolImpl implements StompMessagingProtocol<String
         }
 
         // נוודא שהמשתמש רשום לערוץ שאליו הוא רוצה לשלוח
-        if (!database.getChannelSubscribers(destination).containsKey(connectionId)) {
+        if (!((ConnectionsImpl<StompFrame>) connections).isSubscribed(connectionId, destination)) {
             sendError("Not subscribed", "You cannot send messages to a topic you are not subscribed to.", frame);
             return;
         }
 
-        if (body.contains("event name")) { // בדיקה שיש תוכן בהודעה
+        if (frame.bodyContains("event name")) { // בדיקה שיש תוכן בהודעה
             database.trackFileUpload(loggedInUser, "report_data", destination);
         }
 
-        // שידור לכל הרשומים לערוץ
-        ConcurrentHashMap<Integer, String> subscribers = database.getChannelSubscribers(destination);
-        int msgId = messageIdCounter.getAndIncrement();
-
-        for (Map.Entry<Integer, String> entry : subscribers.entrySet()) {
-            int subConnectionId = entry.getKey();
-            String subId = entry.getValue();
-
-            // בניית הודעה ייחודית לכל משתמש
-            String messageFrame = 
-                "MESSAGE\n" +
-                "subscription:" + subId + "\n" +
-                "message-id:" + msgId + "\n" +
-                "destination:" + destination + "\n" +
-                "\n" + body + "\n\u0000";
-
-            connections.send(subConnectionId, messageFrame);
+        // שידור לכל הרשומים לערוץ - הגוף מקודד פעם אחת ומשותף לכל המנויים.
+        // ה-fan-out רץ על המסלול של הערוץ, אבל רשימת המנויים כבר נקבעה, ולכן ה-RECEIPT יוצא מכאן:
+        // כל ה-RECEIPT-ים של החיבור נשלחים מה-actor שלו ונשארים בסדר של הפריימים
+        int lane = ((ConnectionsImpl<StompFrame>) connections).publish(destination, frame.body());
+        if (lane >= 0) {
+            publishedLanes |= 1L << lane;
         }
-        
         sendReceiptIfNeeded(frame);
     }
 
     private void handleDisconnect(StompFrame frame) {
+        // ההודעות שהלקוח שידר צריכות להגיע (גם אליו) לפני ה-RECEIPT ולפני שהחיבור נסגר
+        ((ConnectionsImpl<StompFrame>) connections).awaitLanes(publishedLanes);
+        publishedLanes = 0;
+
         String receiptId = frame.getHeader("receipt");
         
         if (receiptId != null) {
@@ -209,25 +237,37 @@ public class StompMessagingProtocolImpl implements StompMessagingProtocol<String
     private void sendReceiptIfNeeded(StompFrame frame) {
         String receiptId = frame.getHeader("receipt");
         if (receiptId != null) {
-            String response = "RECEIPT\nreceipt-id:" + receiptId + "\n\n\u0000";
+            StompFrame response = new StompFrame("RECEIPT");
+            response.addHeader("receipt-id", receiptId);
             connections.send(connectionId, response);
         }
     }
 
+    // האם ה-id ייקרא ב-Integer.parseInt בלי NumberFormatException
+    private static boolean isSubscriptionId(String id) {
+        if (id == null) {
+            return false;
+        }
+        try {
+            Integer.parseInt(id);
+            return true;
+        } catch (NumberFormatException ex) {
+            return false;
+        }
+    }
+
     private void sendError(String messageHeader, String body, StompFrame causeFrame) {
-        StringBuilder errorMsg = new StringBuilder();
-        errorMsg.append("ERROR\n");
+        StompFrame errorMsg = new StompFrame("ERROR");
         
         String receiptId = causeFrame.getHeader("receipt");
         if (receiptId != null) {
-            errorMsg.append("receipt-id:").append(receiptId).append("\n");
+            errorMsg.addHeader("receipt-id", receiptId);
         }
         
-        errorMsg.append("message:").append(messageHeader).append("\n\n");
-        errorMsg.append(body).append("\n-----\n");
-        errorMsg.append(causeFrame.toString()).append("\n\u0000");
+        errorMsg.addHeader("message", messageHeader);
+        errorMsg.setBody(body + "\n-----\n" + causeFrame.toString());
         
-        connections.send(connectionId, errorMsg.toString());
+        connections.send(connectionId, errorMsg);
 
         //חשוב לזכור לנתק את המשתמש מהשרת אם מעיפים אותו מרשימת המחוברים
         if (loggedInUser != null) {
@@ -6,30 +6,34 @@ import bgu.spl.net.srv.BlockingConnectionHandler;
 import bgu.spl.net.srv.Reactor;
 import bgu.spl.net.api.MessagingProtocol;
 import bgu.spl.net.api.MessageEncoderDecoder;
+import bgu.spl.net.impl.data.Database;
 import java.io.IOException;
 import java.util.function.Supplier;
 
 public class StompServer {
 
     public static void main(String[] args) {
-        // בדיקת ארגומנטים לפי הדרישות: <port> <tpc/reactor>
+        // בדיקת ארגומנטים לפי הדרישות: <port> <tpc/vtpc/reactor/multireactor>
         if (args.length < 2) {
-            System.out.println("Usage: StompServer <port> <tpc/reactor>");
+            System.out.println("Usage: StompServer <port> <tpc/vtpc/reactor/multireactor>");
             return;
         }
 
         int port = Integer.parseInt(args[0]);
         String serverType = args[1];
 
+        // טוענים את המשתמשים הרשומים מה-SQL לפני שמקבלים חיבורים
+        Database.getInstance().preloadUsers();
+
         //משתמשים בממשק המקורי אבל במימוש החדש
-        Supplier<MessagingProtocol<String>> protocolFactory = () -> new StompMessagingProtocolImpl();
-        Supplier<MessageEncoderDecoder<String>> encdecFactory = () -> new StompEncoderDecoder();
+        Supplier<MessagingProtocol<StompFrame>> protocolFactory = () -> new StompMessagingProtocolImpl();
+        Supplier<MessageEncoderDecoder<StompFrame>> encdecFactory = () -> new StompEncoderDecoder();
 
         if (serverType.equals("tpc")) {
             // מימוש TPC
-            try (Server<String> server = new BaseServer<String>(port, protocolFactory, encdecFactory) {
+            try (Server<StompFrame> server = new BaseServer<StompFrame>(port, protocolFactory, encdecFactory) {
                 @Override
-                protected void execute(BlockingConnectionHandler<String> handler) {
+                protected void execute(BlockingConnectionHandler<StompFrame> handler) {
                     new Thread(handler).start();
                 }
             }) {
@@ -38,9 +42,19 @@ public class StompServer {
                 e.printStackTrace();
             }
 
+        } else if (serverType.equals("vtpc")) {
+            // כמו TPC, אבל כל לקוח רץ על טרד וירטואלי
+            try (Server<StompFrame> server = Server.virtualThreadPerClient(port, protocolFactory, encdecFactory)) {
+                server.serve();
+            } catch (IOException e) {
+                e.printStackTrace();
+            } catch (UnsupportedOperationException e) {
+                System.err.println(e.getMessage());
+            }
+
         } else if (serverType.equals("reactor")) {
             // מימוש Reactor עם מספר טרדים לפי מספר הליבות במעבד 
-            try (Server<String> server = new Reactor<String>(
+            try (Server<StompFrame> server = new Reactor<StompFrame>(
                     Runtime.getRuntime().availableProcessors(),
                     port,
                     protocolFactory,
@@ -49,9 +63,23 @@ public class StompServer {
             } catch (IOException e) {
                 e.printStackTrace();
             }
-            
+
+        } else if (serverType.equals("multireactor")) {
+            // acceptor אחד שמחלק חיבורים ל-sub-reactor לכל ליבה, כל אחד עם סלקטור משלו
+            int cores = Runtime.getRuntime().availableProcessors();
+            try (Server<StompFrame> server = Server.multiReactor(
+                    cores,
+                    cores,
+                    port,
+                    protocolFactory,
+                    encdecFactory)) {
+                server.serve();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+
         } else {
-            System.out.println("Invalid server type. Choose 'tpc' or 'reactor'.");
+            System.out.println("Invalid server type. Choose 'tpc', 'vtpc', 'reactor' or 'multireactor'.");
         }
     }
 }
\ No newline at end of file
@@ -1,77 +1,91 @@
 package bgu.spl.net.srv;
 
-import java.util.LinkedList;
-import java.util.Map;
 import java.util.Queue;
-import java.util.Set;
-import java.util.WeakHashMap;
-import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
-import java.util.concurrent.locks.ReadWriteLock;
-import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 public class ActorThreadPool {
 
-    private final Map<Object, Queue<Runnable>> acts;
-    private final ReadWriteLock actsRWLock;
-    private final Set<Object> playingNow;
     private final ExecutorService threads;
+    private final int batchSize;
 
     public ActorThreadPool(int threads) {
+        this(threads, Integer.getInteger("actor.batchSize", 16));
+    }
+
+    /**
+     * @param batchSize כמה משימות של אותו actor רצות ברצף על אותו טרד לפני שהוא משחרר אותו
+     */
+    public ActorThreadPool(int threads, int batchSize) {
         this.threads = Executors.newFixedThreadPool(threads);
-        acts = new WeakHashMap<>();
-        playingNow = ConcurrentHashMap.newKeySet();
-        actsRWLock = new ReentrantReadWriteLock();
+        this.batchSize = Math.max(1, batchSize);
     }
 
-    public void submit(Object act, Runnable r) {
-        synchronized (act) {
-            if (!playingNow.contains(act)) {
-                playingNow.add(act);
-                execute(r, act);
-            } else {
-                pendingRunnablesOf(act).add(r);
-            }
+    /**
+     * תיבת הדואר של actor: תור MPSC של משימות ממתינות ודגל שמסמן שה-actor
+     * כבר הוגש לביצוע. כל actor מחזיק תיבה משלו, כך שאין מפה משותפת ואין נעילות.
+     */
+    public static final class Mailbox {
+        private final Queue<Runnable> pending = new ConcurrentLinkedQueue<>();
+        private final AtomicBoolean scheduled = new AtomicBoolean(false);
+    }
+
+    public void submit(Mailbox act, Runnable r) {
+        act.pending.add(r);
+        // רק מי שהפך את הדגל מ-false ל-true מגיש את ה-actor, ולכן הוא רץ לכל היותר על טרד אחד
+        if (act.scheduled.compareAndSet(false, true)) {
+            execute(act);
+        }
+    }
+
+    /**
+     * מריץ את המשימה ישר על הטרד הקורא, אבל רק אם ל-actor אין משימות ממתינות והוא לא רץ כרגע.
+     * בזמן הריצה ה-actor מסומן כמוגש, כך שמשימה שנוספת בינתיים מחכה לסיום ושומרת על הסדר.
+     * @return false אם ה-actor עסוק, ואז המשימה לא רצה והקורא צריך להגיש אותה כרגיל
+     */
+    public boolean tryRunInline(Mailbox act, Runnable r) {
+        if (!act.pending.isEmpty() || !act.scheduled.compareAndSet(false, true)) {
+            return false;
+        }
+        try {
+            r.run();
+        } finally {
+            complete(act);
         }
+        return true;
     }
 
     public void shutdown() {
         threads.shutdownNow();
     }
 
-    private Queue<Runnable> pendingRunnablesOf(Object act) {
-
-        actsRWLock.readLock().lock();
-        Queue<Runnable> pendingRunnables = acts.get(act);
-        actsRWLock.readLock().unlock();
-
-        if (pendingRunnables == null) {
-            actsRWLock.writeLock().lock();
-            acts.put(act, pendingRunnables = new LinkedList<>());
-            actsRWLock.writeLock().unlock();
-        }
-        return pendingRunnables;
+    private void execute(Mailbox act) {
+        threads.execute(() -> drain(act));
     }
 
-    private void execute(Runnable r, Object act) {
-        threads.execute(() -> {
-            try {
+    private void drain(Mailbox act) {
+        try {
+            // מריצים עד batchSize משימות ברצף בשביל לוקאליות של cache, ואז משחררים את הטרד
+            for (int i = 0; i < batchSize; i++) {
+                Runnable r = act.pending.poll();
+                if (r == null) {
+                    break;
+                }
                 r.run();
-            } finally {
-                complete(act);
             }
-        });
+        } finally {
+            complete(act);
+        }
     }
 
-    private void complete(Object act) {
-        synchronized (act) {
-            Queue<Runnable> pending = pendingRunnablesOf(act);
-            if (pending.isEmpty()) {
-                playingNow.remove(act);
-            } else {
-                execute(pending.poll(), act);
-            }
+    private void complete(Mailbox act) {
+        act.scheduled.set(false);
+        // משימה שנוספה אחרי ה-poll האחרון אבל לפני שהדגל ירד לא הגישה את ה-actor,
+        // לכן בודקים שוב ומגישים מחדש אם צריך
+        if (!act.pending.isEmpty() && act.scheduled.compareAndSet(false, true)) {
+            execute(act);
         }
     }
 
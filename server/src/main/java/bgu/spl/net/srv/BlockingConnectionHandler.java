@@ -2,19 +2,34 @@ package bgu.spl.net.srv;
 
 import bgu.spl.net.api.MessageEncoderDecoder;
 import bgu.spl.net.api.MessagingProtocol;
-import java.io.BufferedInputStream;
-import java.io.BufferedOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 public class BlockingConnectionHandler<T> implements Runnable, ConnectionHandler<T> {
 
     private final MessagingProtocol<T> protocol;
     private final MessageEncoderDecoder<T> encdec;
     private final Socket sock;
-    private BufferedInputStream in;
-    private BufferedOutputStream out;
+    private static final int READ_CHUNK_SIZE = 1 << 13; //8k
+    private static final int WRITE_CHUNK_SIZE = 1 << 13; //8k
+
+    private InputStream in;
+    private volatile OutputStream out;
     private volatile boolean connected = true;
+    // close התבקש: הסוקט נסגר רק אחרי שמה שכבר בתור נכתב, על ידי מי שמחזיק את writing
+    private volatile boolean closing = false;
+
+    // send נקרא מכל טרד שמשדר לחיבור. הפריימים נכנסים לתור, ומי שמחזיק את writing
+    // מרוקן את כולו לסוקט ב-write אחד לכל היותר לכל 8k, כך שפריימים לא מתערבבים
+    private final Queue<ByteBuffer> writeQueue = new ConcurrentLinkedQueue<>();
+    private final AtomicBoolean writing = new AtomicBoolean(false);
+    private final byte[] writeChunk = new byte[WRITE_CHUNK_SIZE];
 
     public BlockingConnectionHandler(Socket sock, MessageEncoderDecoder<T> encdec, MessagingProtocol<T> protocol) {
         this.sock = sock;
@@ -24,48 +39,129 @@ public class BlockingConnectionHandler<T> implements Runnable, ConnectionHandler
 
     @Override
     public void run() {
-        try (Socket mySock = sock) {
-            in = new BufferedInputStream(sock.getInputStream());
-            out = new BufferedOutputStream(sock.getOutputStream());
+        try {
+            // קוראים בלוקים שלמים ישר מהסוקט ומפענחים את כולם בבת אחת במקום בייט-בייט
+            in = sock.getInputStream();
+            // בלי Buffered streams: המתודות שלהן synchronized וזה מקבע (pins) טרד וירטואלי לטרד הנושא
+            out = sock.getOutputStream();
+            flush(); // פריימים שנשלחו לפני שהסוקט היה מוכן
+            byte[] chunk = new byte[READ_CHUNK_SIZE];
+            ByteBuffer chunkBuffer = ByteBuffer.wrap(chunk);
 
             while (!protocol.shouldTerminate() && connected && !Thread.currentThread().isInterrupted()) {
-                int read = in.read();
+                int read = in.read(chunk);
                 if (read >= 0) {
-                    T nextMessage = encdec.decodeNextByte((byte) read);
-                    if (nextMessage != null) {
-                        T response = protocol.process(nextMessage);
-                        if (response != null) { // תמיכה בפרוטוקולים שמחזירים תשובה ישירה (כמו Echo)
-                            send(response); 
-                        }
-                    }
+                    chunkBuffer.clear().limit(read);
+                    encdec.decode(chunkBuffer, this::dispatch);
                 } else {
                     connected = false; // הלקוח סגר את החיבור מהצד שלו
                 }
             }
         } catch (IOException ex) {
             ex.printStackTrace();
+        } finally {
+            if (!protocol.shouldTerminate()) {
+                protocol.connectionLost(); // הלקוח נעלם בלי DISCONNECT
+            }
+            try {
+                close(); // למשל RECEIPT של DISCONNECT שטרד אחר עוד כותב
+            } catch (IOException ignored) {}
+        }
+    }
+
+    private void dispatch(T nextMessage) {
+        T response = protocol.process(nextMessage);
+        if (response != null) { // תמיכה בפרוטוקולים שמחזירים תשובה ישירה (כמו Echo)
+            send(response);
         }
     }
 
     @Override
     public void send(T msg) {
         if (msg != null) {
+            byte[] encodedMsg = encdec.encode(msg);
+            if (encodedMsg != null) {
+                writeQueue.add(ByteBuffer.wrap(encodedMsg));
+                flush();
+            }
+        }
+    }
+
+    @Override
+    public void sendEncoded(ByteBuffer prefix, SharedBuffer shared) {
+        // בחיבור חוסם ממילא מעתיקים לזרם, אז מחברים את שני החלקים לאיבר אחד בתור.
+        // ההעתקה קורית כאן, בזמן שהשולח עוד מחזיק את הבאפר המשותף, ולכן אין צורך בהפניה משלנו
+        ByteBuffer frame = ByteBuffer.allocate(prefix.remaining() + shared.remaining());
+        frame.put(prefix).put(shared.view()).flip();
+        writeQueue.add(frame);
+        flush();
+    }
+
+    /**
+     * רק טרד אחד בכל רגע מחזיק את writing. הוא מרוקן את כל מה שממתין בתור,
+     * מאחד פריימים קטנים לבלוק אחד וכותב אותו פעם אחת. טרד שלא קיבל את השמירה
+     * יוצא מיד - המחזיק בודק את התור שוב אחרי שחרור ושולח גם את הפריים שלו.
+     * אותו דבר לגבי סגירה: אם התבקשה, המחזיק סוגר את הסוקט אחרי שהתור התרוקן.
+     */
+    private void flush() {
+        while (out != null && writing.compareAndSet(false, true)) {
             try {
-                // כתיבה ופלאש לסוקט
-                out.write(encdec.encode(msg));
-                out.flush();
+                drainWriteQueue();
+                if (closing) {
+                    writeQueue.clear();
+                    sock.close();
+                }
             } catch (IOException ex1) {
                 // ניסיון כתיבה נכשל, ננתק את הלקוח
-                try { 
-                    close(); 
-                } catch (Exception ex2) {}
+                writeQueue.clear();
+                connected = false;
+                closing = true;
+                try {
+                    sock.close();
+                } catch (IOException ex2) {}
+                return;
+            } finally {
+                writing.set(false);
+            }
+
+            if (writeQueue.isEmpty() && !(closing && !sock.isClosed())) {
+                return;
+            }
+        }
+    }
+
+    private void drainWriteQueue() throws IOException {
+        int staged = 0;
+        ByteBuffer next;
+        while ((next = writeQueue.poll()) != null) {
+            if (staged + next.remaining() > writeChunk.length) {
+                out.write(writeChunk, 0, staged);
+                staged = 0;
             }
+            if (next.remaining() > writeChunk.length) {
+                out.write(next.array(), next.arrayOffset() + next.position(), next.remaining());
+            } else {
+                int length = next.remaining();
+                next.get(writeChunk, staged, length);
+                staged += length;
+            }
+        }
+        if (staged > 0) {
+            out.write(writeChunk, 0, staged);
         }
     }
 
+    /**
+     * הסוקט נסגר אחרי שכל מה שכבר נשלח לחיבור נכתב. אם טרד אחר כותב כרגע, הסגירה עוברת אליו
+     */
     @Override
     public void close() throws IOException {
         connected = false;
-        sock.close();
+        closing = true;
+        if (out == null) {
+            sock.close(); // הטרד של החיבור עוד לא התחיל, אין מה לכתוב
+        } else {
+            flush();
+        }
     }
 }
\ No newline at end of file
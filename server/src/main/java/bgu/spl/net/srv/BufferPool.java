@@ -0,0 +1,163 @@
+package bgu.spl.net.srv;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * מאגר באפרים ישירים (direct) לפי מחלקות גודל: 512, 1k, 2k ... 64k.
+ * בקשה מקבלת באפר מהמחלקה הקטנה ביותר שמספיקה לה, ובקשה מעל 64k מקבלת באפר רגיל חד-פעמי.
+ *
+ * לכל טרד יש מטמון קטן משלו לכל מחלקה, כך שהמסלול הנפוץ (קריאה/קידוד ושחרור באותו טרד)
+ * לא נוגע בתור המשותף בכלל. מה שלא נכנס למטמון עובר לתור המשותף של המחלקה, שחסום גם במספר
+ * באפרים לכל מחלקה וגם בסך הבתים בכל התורים. באפר שלא נכנס לאף אחד מהם פשוט נזרק ל-GC,
+ * כך שאחרי עומס המאגר לא מחזיק את כל הזיכרון שהוקצה בשיא.
+ */
+public final class BufferPool {
+
+    private static final int MIN_SHIFT = 9;  // 512B
+    private static final int MAX_SHIFT = 16; // 64k
+    private static final int CLASSES = MAX_SHIFT - MIN_SHIFT + 1;
+
+    public static final int MAX_POOLED_SIZE = 1 << MAX_SHIFT;
+
+    private static final int CLASS_CAP = Integer.getInteger("bufferPool.classCap", 512);
+    private static final long MAX_POOLED_BYTES = Long.getLong("bufferPool.maxBytes", 64L << 20); //64MB
+    private static final int THREAD_CACHE_SIZE = Integer.getInteger("bufferPool.threadCache", 8);
+
+    private static final ConcurrentLinkedQueue<ByteBuffer>[] SHARED = newQueues();
+    private static final AtomicInteger[] SHARED_COUNTS = new AtomicInteger[CLASSES];
+    private static final AtomicLong SHARED_BYTES = new AtomicLong();
+
+    private static final LongAdder HITS = new LongAdder();
+    private static final LongAdder MISSES = new LongAdder();
+    private static final LongAdder OUTSTANDING = new LongAdder();
+
+    static {
+        for (int i = 0; i < CLASSES; i++) {
+            SHARED_COUNTS[i] = new AtomicInteger();
+        }
+    }
+
+    // מטמון פר-טרד: מחסנית קטנה לכל מחלקת גודל
+    private static final class ThreadCache {
+        final ByteBuffer[][] buffers = new ByteBuffer[CLASSES][THREAD_CACHE_SIZE];
+        final int[] sizes = new int[CLASSES];
+    }
+
+    private static final ThreadLocal<ThreadCache> CACHE = ThreadLocal.withInitial(ThreadCache::new);
+
+    private BufferPool() {
+    }
+
+    /**
+     * @return באפר נקי (position 0) עם capacity של לפחות size. limit שווה ל-capacity
+     */
+    public static ByteBuffer acquire(int size) {
+        if (size > MAX_POOLED_SIZE) {
+            MISSES.increment();
+            return ByteBuffer.allocate(size);
+        }
+
+        int sizeClass = sizeClass(size);
+        ThreadCache cache = CACHE.get();
+        ByteBuffer buf;
+        if (cache.sizes[sizeClass] > 0) {
+            int top = --cache.sizes[sizeClass];
+            buf = cache.buffers[sizeClass][top];
+            cache.buffers[sizeClass][top] = null;
+        } else {
+            buf = SHARED[sizeClass].poll();
+            if (buf != null) {
+                SHARED_COUNTS[sizeClass].decrementAndGet();
+                SHARED_BYTES.addAndGet(-buf.capacity());
+            }
+        }
+
+        if (buf == null) {
+            MISSES.increment();
+            buf = ByteBuffer.allocateDirect(1 << (sizeClass + MIN_SHIFT));
+        } else {
+            HITS.increment();
+            buf.clear();
+        }
+        OUTSTANDING.increment();
+        return buf;
+    }
+
+    /**
+     * מחזיר באפר למאגר. באפרים שלא הגיעו מהמאגר (רגילים, לקריאה בלבד או בגודל שאינו מחלקה) מתעלמים מהם.
+     */
+    public static void release(ByteBuffer buf) {
+        if (!isPooled(buf)) {
+            return;
+        }
+        OUTSTANDING.decrement();
+
+        int sizeClass = Integer.numberOfTrailingZeros(buf.capacity()) - MIN_SHIFT;
+        ThreadCache cache = CACHE.get();
+        if (cache.sizes[sizeClass] < THREAD_CACHE_SIZE) {
+            cache.buffers[sizeClass][cache.sizes[sizeClass]++] = buf;
+            return;
+        }
+
+        // המאגר מלא (במחלקה הזו או בסך הכל) - משאירים את הבאפר ל-GC במקום לשמור אותו
+        if (SHARED_COUNTS[sizeClass].incrementAndGet() > CLASS_CAP) {
+            SHARED_COUNTS[sizeClass].decrementAndGet();
+            return;
+        }
+        if (SHARED_BYTES.addAndGet(buf.capacity()) > MAX_POOLED_BYTES) {
+            SHARED_BYTES.addAndGet(-buf.capacity());
+            SHARED_COUNTS[sizeClass].decrementAndGet();
+            return;
+        }
+        SHARED[sizeClass].add(buf);
+    }
+
+    public static boolean isPooled(ByteBuffer buf) {
+        int capacity = buf.capacity();
+        return buf.isDirect() && !buf.isReadOnly()
+                && capacity >= (1 << MIN_SHIFT) && capacity <= MAX_POOLED_SIZE
+                && Integer.bitCount(capacity) == 1;
+    }
+
+    public static long hits() {
+        return HITS.sum();
+    }
+
+    public static long misses() {
+        return MISSES.sum();
+    }
+
+    /**
+     * @return כמה באפרים מהמאגר כרגע בשימוש (הוקצו ועוד לא שוחררו)
+     */
+    public static long outstanding() {
+        return OUTSTANDING.sum();
+    }
+
+    /**
+     * @return כמה בתים מחכים בתורים המשותפים (בלי המטמונים של הטרדים)
+     */
+    public static long pooledBytes() {
+        return SHARED_BYTES.get();
+    }
+
+    private static int sizeClass(int size) {
+        if (size <= (1 << MIN_SHIFT)) {
+            return 0;
+        }
+        return 32 - Integer.numberOfLeadingZeros(size - 1) - MIN_SHIFT;
+    }
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    private static ConcurrentLinkedQueue<ByteBuffer>[] newQueues() {
+        ConcurrentLinkedQueue<ByteBuffer>[] queues = new ConcurrentLinkedQueue[CLASSES];
+        for (int i = 0; i < CLASSES; i++) {
+            queues[i] = new ConcurrentLinkedQueue<>();
+        }
+        return queues;
+    }
+}
@@ -6,6 +6,7 @@
 package bgu.spl.net.srv;
 
 import java.io.Closeable;
+import java.nio.ByteBuffer;
 
 /**
  * The ConnectionHandler interface for Message of type T
@@ -19,4 +20,13 @@ public interface ConnectionHandler<T> extends Closeable {
 
     void send(T msg);
 
+    /**
+     * sends a frame that the caller already encoded: a per-connection prefix
+     * followed by a part that is shared between many connections (a broadcast).
+     * the caller holds a reference to the shared part for the duration of the call;
+     * a connection that keeps it after returning must retain it, write from its own
+     * view of it, and release it once the frame was written or dropped.
+     */
+    void sendEncoded(ByteBuffer prefix, SharedBuffer shared);
+
 }
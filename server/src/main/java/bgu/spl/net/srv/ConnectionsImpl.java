@@ -1,10 +1,12 @@
 package bgu.spl.net.srv;
 
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
 import java.util.Map;
-import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * מימוש ממשק Connections
@@ -13,47 +15,152 @@ import java.util.concurrent.atomic.AtomicInteger;
 public class ConnectionsImpl<T> implements Connections<T> {
 
     // מיפוי User ID -> Handler
-    private final Map<Integer, ConnectionHandler<T>> activeConnections = new ConcurrentHashMap<>();
+    private final IntObjectMap<ConnectionHandler<T>> activeConnections = new IntObjectMap<>();
     
-    //מיפוי Channel Name -> List of Users Subrcribed
-    private final Map<String, Set<Integer>> channelSubscriptions = new ConcurrentHashMap<>();
+    // אינדקס המנויים היחיד בשרת, בשני כיוונים:
+    // Channel Name -> snapshot לא משתנה של המנויים, בשביל שידור לערוץ.
+    // שידורים הרבה יותר נפוצים מרישומים, לכן המערך נבנה מחדש רק ב-subscribe/unsubscribe
+    // והשידור רץ בלולאה על מערך, בלי hashing ובלי boxing
+    private final Map<String, Subscriber[]> channelSubscribers = new ConcurrentHashMap<>();
 
-    //מיפויים נוספים לטובת StompFrame
-    // מיפוי Subscription ID -> (מיפוי Channel ID -> Channel Name) 
-    private final Map<Integer, Map<Integer, String>> subIdToChannel = new ConcurrentHashMap<>();
+    // Connection ID -> (Subscription ID -> Channel Name) בשביל unsubscribe וניתוק,
+    // כך שניתוק עולה כמספר המנויים של הלקוח עצמו ולא כמספר הערוצים בשרת
+    private final IntObjectMap<IntObjectMap<String>> connectionSubscriptions = new IntObjectMap<>();
 
-    //מיפוי הפוך: Channel ID -> (מיפוי Channel Name -> Subscription ID)
-    private final Map<Integer, Map<String, Integer>> channelToSubId = new ConcurrentHashMap<>();
+    // מספר מסלולי ה-fan-out (עד 64, ביט לכל מסלול ב-awaitLanes). 0 = שידור ישר בטרד של השולח
+    private static final int FANOUT_LANES = Math.min(64,
+            Integer.getInteger("fanout.lanes", Runtime.getRuntime().availableProcessors()));
 
-    private final AtomicInteger messageIdCounter = new AtomicInteger(1);
+    private final FanOutLanes lanes;
+
+    // רק כשאין מסלולים. עם מסלולים לכל מסלול יש מונה משלו
+    private final AtomicLong messageIdCounter = new AtomicLong(1);
+
+    // מקום שנשמר בתחילת הבאפר המשותף לשורת message-id, שנכתבת רק כשהמסלול מגיע לשידור
+    private static final int MESSAGE_ID_ROOM = "message-id:".length() + 20 + 1;
+
+    // רשומה ב-snapshot של ערוץ: ההאנדלר של המנוי ושורות ה-prefix שלו, מקודדות מראש
+    private static final class Subscriber {
+        final int connectionId;
+        final int subId;
+        final ConnectionHandler<?> handler;
+        final byte[] prefix;
+
+        Subscriber(int connectionId, int subId, ConnectionHandler<?> handler) {
+            this.connectionId = connectionId;
+            this.subId = subId;
+            this.handler = handler;
+            this.prefix = ("MESSAGE\nsubscription:" + subId + "\n").getBytes(StandardCharsets.UTF_8);
+        }
+    }
+
+    /**
+     * בלי מסלולי fan-out: כל שידור רץ בטרד של השולח. כך זה בשרתי tpc/vtpc, שם שליחה למנוי
+     * היא כתיבה חוסמת לסוקט, ומנוי אחד שלא קורא היה תוקע את כל הערוצים של המסלול שלו
+     */
+    public ConnectionsImpl() {
+        this(false);
+    }
+
+    /**
+     * @param fanOutLanes האם לשדר דרך מסלולי fan-out (fanout.lanes). מתאים רק כש-sendEncoded
+     * של כל ה-handlers לא חוסם, כמו ב-NonBlockingConnectionHandler
+     */
+    public ConnectionsImpl(boolean fanOutLanes) {
+        this.lanes = fanOutLanes && FANOUT_LANES > 0 ? new FanOutLanes(FANOUT_LANES) : null;
+    }
 
     public void addConnection(int connectionId, ConnectionHandler<T> handler) {
         activeConnections.put(connectionId, handler);
     }
 
     public void addSubscription(int connectionId, int subId, String channel) {
-        // מוסיף את הרישום החדש למפות הרלוונטיות
-        channelSubscriptions.computeIfAbsent(channel, k -> ConcurrentHashMap.newKeySet()).add(connectionId);
-        subIdToChannel.computeIfAbsent(connectionId, k -> new ConcurrentHashMap<>()).put(subId, channel);
-        channelToSubId.computeIfAbsent(connectionId, k -> new ConcurrentHashMap<>()).put(channel, subId);
+        ConnectionHandler<T> handler = activeConnections.get(connectionId);
+        if (handler == null) {
+            return; // הלקוח כבר התנתק
+        }
+        IntObjectMap<String> userSubs = connectionSubscriptions.computeIfAbsent(connectionId, k -> new IntObjectMap<>());
+        String previous = userSubs.put(subId, channel);
+        if (previous != null && !previous.equals(channel)) {
+            // אותו subscription id לערוץ אחר מחליף את הרישום הקודם, גם בערוץ הישן
+            unlinkFromChannel(connectionId, subId, previous);
+        }
+
+        // compute נועל את הערוץ, כך ששני שינויים לא בונים snapshot במקביל ולא מוסיפים לערוץ שבדיוק מפונה
+        Subscriber added = new Subscriber(connectionId, subId, handler);
+        int[] replaced = { subId };
+        channelSubscribers.compute(channel, (k, subscribers) -> {
+            if (subscribers == null) {
+                return new Subscriber[] { added };
+            }
+            int i = indexOf(subscribers, connectionId);
+            Subscriber[] next;
+            if (i >= 0) {
+                // רישום חוזר לאותו ערוץ מחליף את הקודם
+                replaced[0] = subscribers[i].subId;
+                next = subscribers.clone();
+                next[i] = added;
+            } else {
+                next = Arrays.copyOf(subscribers, subscribers.length + 1);
+                next[subscribers.length] = added;
+            }
+            return next;
+        });
+
+        if (replaced[0] != subId) {
+            userSubs.remove(replaced[0], channel);
+        }
     }
 
-    public void removeSubscription(int connectionId, int subId) {
-        // הסרה מכל המפות הרלוונטיות ב O(1)
-        Map<Integer, String> userSubs = subIdToChannel.get(connectionId);
-        if (userSubs != null) {
-            String channel = userSubs.remove(subId);
-            if (channel != null) {
-                Set<Integer> subscribers = channelSubscriptions.get(channel);
-                if (subscribers != null) {
-                    subscribers.remove(connectionId);
-                }
-                Map<String, Integer> userChannels = channelToSubId.get(connectionId);
-                if (userChannels != null) {
-                    userChannels.remove(channel);
-                }
+    /**
+     * @return שם הערוץ שהרישום היה שייך אליו, או null אם אין ללקוח רישום כזה
+     */
+    public String removeSubscription(int connectionId, int subId) {
+        IntObjectMap<String> userSubs = connectionSubscriptions.get(connectionId);
+        if (userSubs == null) {
+            return null;
+        }
+        String channel = userSubs.remove(subId);
+        if (channel != null) {
+            unlinkFromChannel(connectionId, subId, channel);
+        }
+        return channel;
+    }
+
+    public boolean hasSubscription(int connectionId, int subId) {
+        IntObjectMap<String> userSubs = connectionSubscriptions.get(connectionId);
+        return userSubs != null && userSubs.containsKey(subId);
+    }
+
+    public boolean isSubscribed(int connectionId, String channel) {
+        Subscriber[] subscribers = channelSubscribers.get(channel);
+        return subscribers != null && indexOf(subscribers, connectionId) >= 0;
+    }
+
+    // מסיר את הלקוח מהערוץ, ומפנה את הערוץ אם לא נשאר בו אף מנוי
+    private void unlinkFromChannel(int connectionId, int subId, String channel) {
+        channelSubscribers.computeIfPresent(channel, (k, subscribers) -> {
+            int i = indexOf(subscribers, connectionId);
+            if (i < 0 || subscribers[i].subId != subId) {
+                return subscribers;
+            }
+            if (subscribers.length == 1) {
+                return null;
+            }
+            Subscriber[] next = new Subscriber[subscribers.length - 1];
+            System.arraycopy(subscribers, 0, next, 0, i);
+            System.arraycopy(subscribers, i + 1, next, i, next.length - i);
+            return next;
+        });
+    }
+
+    private static int indexOf(Subscriber[] subscribers, int connectionId) {
+        for (int i = 0; i < subscribers.length; i++) {
+            if (subscribers[i].connectionId == connectionId) {
+                return i;
             }
         }
+        return -1;
     }
 
     // אם המשתמש קיים ומחובר, נעביר את ההודעה שלו באמצעות ההאנדלר
@@ -69,39 +176,92 @@ public class ConnectionsImpl<T> implements Connections<T> {
 
     // אם הערוץ קיים (לפי שם), נעביר את ההודעה לכל המשתמשים הרשומים לערוץ
     @Override
-    @SuppressWarnings("unchecked")
     public void send(String channel, T msg) {
-        Set<Integer> subscribers = channelSubscriptions.get(channel);
-        if (subscribers != null) {
-            for (Integer connId : subscribers) {
-                Map<String, Integer> userChannels = channelToSubId.get(connId);
-                if (userChannels != null) {
-                    Integer subId = userChannels.get(channel);
-                    if (subId != null) {
-                        String messageFrame = "MESSAGE\n" +
-                                "subscription:" + subId + "\n" +
-                                "destination:" + channel + "\n" +
-                                "message-id:" + messageIdCounter.getAndIncrement() + "\n\n" +
-                                msg + "\u0000";
-                        send(connId, (T) messageFrame);
-                    }
-                }
+        broadcast(channel, ByteBuffer.wrap(String.valueOf(msg).getBytes(StandardCharsets.UTF_8)));
+    }
+
+    /**
+     * שולח פריים MESSAGE לכל הרשומים לערוץ.
+     * החלק שזהה לכולם (message-id, destination והגוף) מקודד פעם אחת לבאפר משותף לקריאה בלבד
+     * מ-BufferPool, שחוזר למאגר אחרי שהמנוי האחרון כתב אותו (SharedBuffer),
+     * ולכל מנוי נבנה רק prefix קטן עם שורת ה-subscription שלו. כך העלות של שידור
+     * לא גדלה עם גודל הגוף כפול מספר המנויים. השליחה עצמה עוברת דרך המסלול של הערוץ (publish).
+     * @param body גוף ההודעה בקידוד UTF-8, בלי נאל בייט בסוף
+     */
+    public void broadcast(String channel, ByteBuffer body) {
+        publish(channel, body);
+    }
+
+    /**
+     * כמו broadcast, אבל ה-fan-out רץ על המסלול של הערוץ ולא בטרד של השולח.
+     * הגוף מועתק לבאפר המשותף לפני החזרה, כך שמותר להעביר גוף שתקף רק בזמן הקריאה.
+     * @return המסלול שהשידור נכנס אליו (בשביל awaitLanes), או -1 אם השידור כבר הסתיים
+     */
+    public int publish(String channel, ByteBuffer body) {
+        // המנויים נקראים כאן, בטרד של השולח: השידור מגיע למי שהיה רשום כשה-SEND עובד,
+        // גם אם הוא ביטל את הרישום לפני שהמסלול הגיע לשידור
+        Subscriber[] subscribers = channelSubscribers.get(channel);
+        if (subscribers == null) {
+            return -1;
+        }
+        if (lanes == null) {
+            fanOut(subscribers, stampMessageId(encodeWithoutMessageId(channel, body), messageIdCounter.getAndIncrement()));
+            return -1;
+        }
+
+        int lane = lanes.laneOf(channel);
+        ByteBuffer unstamped = encodeWithoutMessageId(channel, body);
+        lanes.execute(lane, () -> fanOut(subscribers, stampMessageId(unstamped, lanes.nextMessageId(lane))));
+        return lane;
+    }
+
+    /**
+     * מחכה שכל השידורים שכבר נכנסו למסלולים שב-laneMask (ביט 1 &lt;&lt; lane לכל מסלול מ-publish) יגיעו למנויים
+     */
+    public void awaitLanes(long laneMask) {
+        if (lanes != null && laneMask != 0) {
+            lanes.await(laneMask);
+        }
+    }
+
+    // מחלק את הפריים ומשחרר את ההפניה של השידור. מנוי שהכניס אותו לתור מחזיק הפניה משלו
+    private static void fanOut(Subscriber[] subscribers, SharedBuffer shared) {
+        try {
+            for (Subscriber subscriber : subscribers) {
+                subscriber.handler.sendEncoded(ByteBuffer.wrap(subscriber.prefix), shared);
             }
+        } finally {
+            shared.release();
         }
     }
 
+    // destination, שורה ריקה, הגוף והנאל בייט, אחרי מקום פנוי לשורת ה-message-id. הבאפר מהמאגר
+    private static ByteBuffer encodeWithoutMessageId(String channel, ByteBuffer body) {
+        byte[] destination = ("destination:" + channel + "\n\n").getBytes(StandardCharsets.UTF_8);
+        ByteBuffer shared = BufferPool.acquire(MESSAGE_ID_ROOM + destination.length + body.remaining() + 2);
+        shared.position(MESSAGE_ID_ROOM);
+        shared.put(destination).put(body.duplicate()).put((byte) '\n').put((byte) '\u0000');
+        shared.flip();
+        return shared;
+    }
+
+    // כותב את שורת ה-message-id צמוד לפני ה-destination. הפריים הוא מה שמשם והלאה, לקריאה בלבד
+    private static SharedBuffer stampMessageId(ByteBuffer unstamped, long messageId) {
+        byte[] line = ("message-id:" + messageId + "\n").getBytes(StandardCharsets.UTF_8);
+        int start = MESSAGE_ID_ROOM - line.length;
+        unstamped.position(start);
+        unstamped.put(line);
+        unstamped.position(start);
+        return new SharedBuffer(unstamped, unstamped.slice().asReadOnlyBuffer());
+    }
+
     @Override
     public void disconnect(int connectionId) {
         //ניקוי רישומים מכל הערוצים כדי למנוע דליפות זיכרון
-        subIdToChannel.remove(connectionId);
-        Map<String, Integer> userChannels = channelToSubId.remove(connectionId);
-        if (userChannels != null) {
-            for (String channel : userChannels.keySet()) {
-                Set<Integer> subscribers = channelSubscriptions.get(channel);
-                if (subscribers != null) {
-                    subscribers.remove(connectionId);
-                }
-            }
+        // עוברים רק על הרישומים של הלקוח עצמו
+        IntObjectMap<String> userSubs = connectionSubscriptions.remove(connectionId);
+        if (userSubs != null) {
+            userSubs.forEach((subId, channel) -> unlinkFromChannel(connectionId, subId, channel));
         }
 
         ConnectionHandler<T> handler = activeConnections.remove(connectionId);
@@ -0,0 +1,83 @@
+package bgu.spl.net.srv;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedTransferQueue;
+
+/**
+ * מסלולי fan-out: כל ערוץ ממופה לפי hash למסלול קבוע, ולכל מסלול יש טרד צרכן יחיד.
+ * כך שידורים לאותו ערוץ רצים תמיד לפי הסדר שבו נכנסו, שידורים לערוצים שונים מתפזרים
+ * על כמה ליבות, וה-actor של השולח משתחרר מיד אחרי שהשידור נכנס לתור של המסלול.
+ * גם מונה ה-message-id הוא פר-מסלול, כך שאין מונה משותף שכל השולחים מתחרים עליו.
+ */
+final class FanOutLanes {
+
+    private final Lane[] lanes;
+
+    FanOutLanes(int count) {
+        lanes = new Lane[count];
+        for (int i = 0; i < count; i++) {
+            lanes[i] = new Lane();
+            Thread thread = new Thread(lanes[i], "fanout-lane-" + i);
+            thread.setDaemon(true);
+            thread.start();
+        }
+    }
+
+    int laneOf(String channel) {
+        int h = channel.hashCode();
+        h ^= h >>> 16; // שמות ערוצים דומים (/game1, /game2) נבדלים בעיקר בביטים הנמוכים
+        return (h & 0x7fffffff) % lanes.length;
+    }
+
+    void execute(int lane, Runnable task) {
+        lanes[lane].tasks.add(task);
+    }
+
+    /**
+     * נקרא רק מטרד המסלול עצמו.
+     * @return message-id חדש, ייחודי בין כל המסלולים (המסלול הוא השארית)
+     */
+    long nextMessageId(int lane) {
+        return lanes[lane].sequence++ * lanes.length + lane + 1;
+    }
+
+    /**
+     * מחכה שכל מה שכבר נכנס למסלולים שב-laneMask (ביט לכל מסלול) יסיים לרוץ.
+     * אסור לקרוא לה מטרד של מסלול.
+     */
+    void await(long laneMask) {
+        CountDownLatch passed = new CountDownLatch(Long.bitCount(laneMask));
+        for (int lane = 0; lane < lanes.length; lane++) {
+            if ((laneMask & (1L << lane)) != 0) {
+                execute(lane, passed::countDown);
+            }
+        }
+        try {
+            passed.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static final class Lane implements Runnable {
+        final LinkedTransferQueue<Runnable> tasks = new LinkedTransferQueue<>();
+        long sequence = 0; // רק טרד המסלול נוגע בו
+
+        @Override
+        public void run() {
+            while (true) {
+                Runnable task;
+                try {
+                    task = tasks.take();
+                } catch (InterruptedException e) {
+                    return;
+                }
+                try {
+                    task.run();
+                } catch (RuntimeException e) {
+                    e.printStackTrace(); // שידור אחד שנכשל לא עוצר את המסלול
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,230 @@
+package bgu.spl.net.srv;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.util.function.IntFunction;
+
+/**
+ * מפה מ-int לאובייקט עם open addressing, במקום ConcurrentHashMap&lt;Integer, V&gt;.
+ * אין boxing של המפתחות ואין Node לכל רשומה: רק מערך int של מפתחות ומערך של ערכים.
+ * קריאה (get) לא נועלת כלום, כתיבות מסונכרנות ביניהן.
+ *
+ * מה שמאפשר לקרוא בלי נעילה: לכל מפתח יש לכל היותר תא אחד, ומפתח שנכתב לתא לא משתנה
+ * יותר עד הגדלת הטבלה. הסרה רק מסמנת את הערך כ-TOMBSTONE, והכנסה חוזרת של אותו מפתח
+ * מחייה את אותו תא. הגדלה/ניקוי בונים טבלה חדשה ומפרסמים אותה דרך שדה volatile.
+ */
+public final class IntObjectMap<V> {
+
+    private static final Object TOMBSTONE = new Object();
+    private static final VarHandle VALUES = MethodHandles.arrayElementVarHandle(Object[].class);
+    private static final int MIN_CAPACITY = 8;
+
+    public interface Visitor<V> {
+        void accept(int key, V value);
+    }
+
+    private static final class Table {
+        final int[] keys;
+        final Object[] values;
+
+        Table(int capacity) {
+            keys = new int[capacity];
+            values = new Object[capacity];
+        }
+    }
+
+    private volatile Table table;
+    private volatile int size;
+    private int used; // תאים שאינם null, כולל TOMBSTONE. מוגן ע"י this
+
+    public IntObjectMap() {
+        this(MIN_CAPACITY);
+    }
+
+    public IntObjectMap(int expectedSize) {
+        table = new Table(capacityFor(expectedSize));
+    }
+
+    @SuppressWarnings("unchecked")
+    public V get(int key) {
+        Table t = table;
+        int mask = t.keys.length - 1;
+        for (int i = mix(key) & mask; ; i = (i + 1) & mask) {
+            // הערך נכתב עם release אחרי המפתח, לכן מי שרואה ערך רואה גם את המפתח שלו
+            Object value = VALUES.getAcquire(t.values, i);
+            if (value == null) {
+                return null;
+            }
+            if (t.keys[i] == key) {
+                return value == TOMBSTONE ? null : (V) value;
+            }
+        }
+    }
+
+    public boolean containsKey(int key) {
+        return get(key) != null;
+    }
+
+    /**
+     * @return הערך הקודם, או null
+     */
+    public synchronized V put(int key, V value) {
+        return insert(key, value, false);
+    }
+
+    public synchronized V putIfAbsent(int key, V value) {
+        return insert(key, value, true);
+    }
+
+    public V computeIfAbsent(int key, IntFunction<? extends V> factory) {
+        V value = get(key);
+        if (value != null) {
+            return value;
+        }
+        synchronized (this) {
+            value = get(key);
+            if (value == null) {
+                value = factory.apply(key);
+                insert(key, value, false);
+            }
+            return value;
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    public synchronized V remove(int key) {
+        Table t = table;
+        int i = indexOf(t, key);
+        if (i < 0) {
+            return null;
+        }
+        Object old = t.values[i];
+        if (old == TOMBSTONE) {
+            return null;
+        }
+        VALUES.setRelease(t.values, i, TOMBSTONE);
+        size--;
+        return (V) old;
+    }
+
+    public synchronized boolean remove(int key, V value) {
+        Table t = table;
+        int i = indexOf(t, key);
+        Object old = i < 0 ? null : t.values[i];
+        if (old == null || old == TOMBSTONE || !old.equals(value)) {
+            return false;
+        }
+        VALUES.setRelease(t.values, i, TOMBSTONE);
+        size--;
+        return true;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    /**
+     * עובר על הרשומות של הטבלה הנוכחית בלי נעילה. שינויים שקורים במקביל אולי ייראו ואולי לא.
+     */
+    @SuppressWarnings("unchecked")
+    public void forEach(Visitor<? super V> visitor) {
+        Table t = table;
+        for (int i = 0; i < t.keys.length; i++) {
+            Object value = VALUES.getAcquire(t.values, i);
+            if (value != null && value != TOMBSTONE) {
+                visitor.accept(t.keys[i], (V) value);
+            }
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private V insert(int key, V value, boolean onlyIfAbsent) {
+        if (value == null) {
+            throw new NullPointerException();
+        }
+        Table t = table;
+        int i = indexOf(t, key);
+        if (i >= 0) {
+            Object old = t.values[i];
+            if (old != TOMBSTONE) {
+                if (!onlyIfAbsent) {
+                    VALUES.setRelease(t.values, i, value);
+                }
+                return (V) old;
+            }
+            // תא של אותו מפתח שהוסר - מחיים אותו
+            VALUES.setRelease(t.values, i, value);
+            size++;
+            return null;
+        }
+
+        // מפתח חדש תופס תא ריק. משאירים לפחות חצי מהטבלה ריקה כדי שחיפוש תמיד ייעצר
+        if ((used + 1) * 2 > t.keys.length) {
+            t = rehash(size + 1);
+        }
+        int mask = t.keys.length - 1;
+        i = mix(key) & mask;
+        while (t.values[i] != null) {
+            i = (i + 1) & mask;
+        }
+        t.keys[i] = key;
+        VALUES.setRelease(t.values, i, value);
+        used++;
+        size++;
+        return null;
+    }
+
+    // בונה טבלה חדשה רק עם הרשומות החיות - זה גם מה שמנקה TOMBSTONEs שהצטברו
+    private Table rehash(int liveEntries) {
+        Table old = table;
+        Table t = new Table(capacityFor(liveEntries));
+        int mask = t.keys.length - 1;
+        int count = 0;
+        for (int j = 0; j < old.keys.length; j++) {
+            Object value = old.values[j];
+            if (value != null && value != TOMBSTONE) {
+                int i = mix(old.keys[j]) & mask;
+                while (t.values[i] != null) {
+                    i = (i + 1) & mask;
+                }
+                t.keys[i] = old.keys[j];
+                t.values[i] = value;
+                count++;
+            }
+        }
+        used = count;
+        table = t; // פרסום דרך volatile - קוראים יראו את הטבלה מלאה
+        return t;
+    }
+
+    private static int indexOf(Table t, int key) {
+        int mask = t.keys.length - 1;
+        for (int i = mix(key) & mask; ; i = (i + 1) & mask) {
+            if (t.values[i] == null) {
+                return -1;
+            }
+            if (t.keys[i] == key) {
+                return i;
+            }
+        }
+    }
+
+    // מזהים רצים (1, 2, 3...) - מפזרים אותם כדי שלא ייצרו רצפים ארוכים בטבלה
+    private static int mix(int key) {
+        int h = key * 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+
+    // חזקה של 2, עם מקום לפי 4 מהרשומות כך שאחרי הגדלה יש מרווח עד הבאה
+    private static int capacityFor(int entries) {
+        int capacity = MIN_CAPACITY;
+        while (capacity < entries * 4L) {
+            capacity <<= 1;
+        }
+        return capacity;
+    }
+}
@@ -6,25 +6,104 @@ import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.nio.channels.SelectionKey;
 import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
 import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
 
 public class NonBlockingConnectionHandler<T> implements ConnectionHandler<T> {
 
-    private static final int BUFFER_ALLOCATION_SIZE = 1 << 13; //8k
-    private static final ConcurrentLinkedQueue<ByteBuffer> BUFFER_POOL = new ConcurrentLinkedQueue<>();
+    // גודל באפר הקריאה מסתגל לכל חיבור בין 1k ל-64k, ומתחיל מ-8k
+    private static final int INITIAL_READ_BUFFER_SIZE = 1 << 13; //8k
+    private static final int MIN_READ_BUFFER_SIZE = 1 << 10; //1k
+    private static final int MAX_READ_BUFFER_SIZE = BufferPool.MAX_POOLED_SIZE;
+    // כמה בתים לכל היותר נקראים מחיבור אחד בכל מעבר של הסלקטור, כדי לא להרעיב חיבורים אחרים
+    private static final int READ_BUDGET_BYTES = Integer.getInteger("reactor.readBudgetBytes", 1 << 18); //256k
+
+    /**
+     * מה עושים עם לקוח שלא קורא (תור היציאה שלו עבר את ה-high water mark)
+     */
+    public enum SlowConsumerPolicy {
+        DISCONNECT,   // זורקים את מה שממתין, שולחים ERROR אם הסוקט מקבל אותו וסוגרים
+        DROP_OLDEST,  // זורקים את הפריימים הישנים עד שהתור יורד ל-low water mark
+        PAUSE_READING // מפסיקים לקרוא מהלקוח עד שהתור יורד ל-low water mark
+    }
+
+    // backpressure פר-חיבור, בבתים שממתינים בתור היציאה
+    private static final long HIGH_WATER_BYTES = Long.getLong("reactor.highWaterBytes", 8L << 20); //8MB
+    private static final long LOW_WATER_BYTES = Long.getLong("reactor.lowWaterBytes", 2L << 20); //2MB
+    private static final SlowConsumerPolicy SLOW_CONSUMER_POLICY = SlowConsumerPolicy.valueOf(
+            System.getProperty("reactor.slowConsumerPolicy", "DISCONNECT").toUpperCase());
+    private static final byte[] SLOW_CONSUMER_ERROR = ("ERROR\nmessage:Slow consumer\n\n"
+            + "Too many messages are waiting for this connection, closing it.\n\u0000").getBytes(StandardCharsets.UTF_8);
+
+    // תקציב גלובלי לכל הבתים שממתינים בתורי היציאה של כל החיבורים יחד. מעליו מפסיקים לקרוא
+    // מחיבורים ששולחים (מפרסמים) עד שה-backlog של ה-fan-out יורד מתחת לסף התחתון
+    private static final long GLOBAL_HIGH_WATER_BYTES = Long.getLong("reactor.globalHighWaterBytes", 256L << 20); //256MB
+    private static final long GLOBAL_LOW_WATER_BYTES = Long.getLong("reactor.globalLowWaterBytes", 128L << 20); //128MB
+    private static final AtomicLong TOTAL_QUEUED_BYTES = new AtomicLong();
+    private static volatile long peakTotalQueuedBytes = 0;
+    private static final Set<NonBlockingConnectionHandler<?>> THROTTLED = ConcurrentHashMap.newKeySet();
+    private static final LongAdder THROTTLE_EVENTS = new LongAdder();
+
+    // תקציב כתיבה: כמה פריימים נאספים ל-gathering write אחד, וכמה בתים לכל היותר בכל מעבר של הסלקטור
+    private static final int WRITE_BATCH_FRAMES = Integer.getInteger("reactor.writeBatchFrames", 64);
+    private static final int WRITE_BUDGET_BYTES = Integer.getInteger("reactor.writeBudgetBytes", 1 << 18); //256k
+
+    // מונים גלובליים לחישוב פריימים לכל קריאת write
+    private static final LongAdder WRITE_CALLS = new LongAdder();
+    private static final LongAdder FRAMES_WRITTEN = new LongAdder();
 
     private final MessagingProtocol<T> protocol; 
     private final MessageEncoderDecoder<T> encdec;
     private final Queue<ByteBuffer> writeQueue = new ConcurrentLinkedQueue<>();
+    // ההפניות לחלקים המשותפים (לקריאה בלבד) שב-writeQueue, באותו סדר שלהם שם
+    private final Queue<SharedBuffer> sharedQueued = new ConcurrentLinkedQueue<>();
+    private final ByteBuffer[] writeBatch = new ByteBuffer[WRITE_BATCH_FRAMES];
     private final SocketChannel chan;
-    private final Reactor<T> reactor;
+    private final SubReactor<T> reactor;
+    private final AtomicBoolean closed = new AtomicBoolean(false);
+
+    // שמירת כתיבה פר-חיבור: מי שמחזיק אותה הוא היחיד שכותב לסוקט כרגע
+    private final AtomicBoolean writing = new AtomicBoolean(false);
+    private volatile boolean writeInterest = false;
+    private volatile boolean reading = false;
+    // נגישים רק מטרד הסלקטור (continueRead)
+    private int readBufferSize = INITIAL_READ_BUFFER_SIZE;
+    private long avgReadBytes = INITIAL_READ_BUFFER_SIZE;
+    // עדכון interest ops כבר מחכה לטרד הסלקטור (ראו SubReactor.updateInterestedOps)
+    private final AtomicBoolean interestPending = new AtomicBoolean(false);
+
+    private final AtomicLong queuedBytes = new AtomicLong();
+    private volatile long peakQueuedBytes = 0;
+    private final LongAdder droppedFrames = new LongAdder();
+    private volatile boolean readPaused = false; // PAUSE_READING / DISCONNECT
+    private volatile boolean closing = false;    // DISCONNECT: סוגרים ברגע שה-ERROR נכתב (או מיד, אם אי אפשר לכתוב)
+    private volatile boolean throttled = false;  // התקציב הגלובלי מלא, לא קוראים עד שהוא מתפנה
+    private final Consumer<T> dispatcher = this::dispatch;
+
+    // ריצה על טרד הסלקטור (SubReactor, reactor.inlineCheapFrames). השדות נגישים רק ממי שמחזיק את ה-mailbox
+    private static final LongAdder INLINE_FRAMES = new LongAdder();
+    private static final LongAdder DEFERRED_FRAMES = new LongAdder();
+    private boolean inlineRun = false;
+    private List<T> deferred = null;
+    private boolean closeAfterDeferred = false;
+    private final ActorThreadPool.Mailbox mailbox = new ActorThreadPool.Mailbox();
 
     public NonBlockingConnectionHandler(
             MessageEncoderDecoder<T> reader,
             MessagingProtocol<T> protocol, 
             SocketChannel chan,
-            Reactor<T> reactor) {
+            SubReactor<T> reactor) {
         this.chan = chan;
         this.encdec = reader;
         this.protocol = protocol;
@@ -32,45 +111,161 @@ public class NonBlockingConnectionHandler<T> implements ConnectionHandler<T> {
     }
 
     public Runnable continueRead() {
-        ByteBuffer buf = leaseBuffer();
+        // הלקוח שולח כשהשרת כבר מחזיק יותר מדי בתים לשליחה - לא קוראים ממנו עד שזה יורד
+        if (TOTAL_QUEUED_BYTES.get() >= GLOBAL_HIGH_WATER_BYTES) {
+            throttle();
+            return null;
+        }
 
-        boolean success = false;
+        // קוראים שוב ושוב עד שהסוקט מתרוקן או שנגמר התקציב של המעבר, לשרשרת של באפרים
+        List<ByteBuffer> chunks = new ArrayList<>(2);
+        boolean eof = false;
+        long total = 0;
         try {
-            success = chan.read(buf) != -1;
+            while (total < READ_BUDGET_BYTES) {
+                ByteBuffer buf = BufferPool.acquire(readBufferSize);
+                int n = chan.read(buf);
+                if (n <= 0) {
+                    BufferPool.release(buf);
+                    eof = n == -1;
+                    break;
+                }
+                buf.flip();
+                chunks.add(buf);
+                total += n;
+                if (buf.limit() < buf.capacity()) {
+                    break; // הבאפר לא התמלא - הסוקט כבר ריק, אין טעם בעוד read שיחזיר 0
+                }
+            }
         } catch (IOException ex) {
             ex.printStackTrace();
+            eof = true;
+        }
+        adaptReadBufferSize(total);
+
+        if (eof) {
+            // לא מחכים יותר לקלט מהחיבור, אבל מה שכבר נקרא עוד מעובד לפני הסגירה
+            reading = false;
+            reactor.updateInterestedOps(chan);
+            if (chunks.isEmpty()) {
+                close();
+                return null;
+            }
+        } else if (chunks.isEmpty()) {
+            return null;
         }
 
-        if (success) {
-            buf.flip();
-            return () -> {
-                try {
-                    while (buf.hasRemaining()) {
-                        T nextMessage = encdec.decodeNextByte(buf.get());
-                        if (nextMessage != null) {
-                            T response = protocol.process(nextMessage); 
-                            if (response != null) { //תגובה מיידית לתמיכה בשרתים כמו Echo
-                                send(response); 
-                            }
-                        }
+        final boolean closeAfter = eof;
+        return () -> {
+            try {
+                for (ByteBuffer chunk : chunks) {
+                    encdec.decode(chunk, dispatcher);
+                }
+            } finally {
+                for (ByteBuffer chunk : chunks) {
+                    BufferPool.release(chunk);
+                }
+                if (closeAfter) {
+                    if (deferred != null) {
+                        closeAfterDeferred = true; // סוגרים רק אחרי שהפריימים שנדחו ל-actor ירוצו
+                    } else {
+                        close();
                     }
-                } finally {
-                    releaseBuffer(buf);
                 }
-            };
-        } else {
-            releaseBuffer(buf);
-            close();
+            }
+        };
+    }
+
+    /**
+     * עוטף משימת קריאה לריצה על טרד הסלקטור: פריים זול מעובד מיד, והפריים הראשון שאינו זול
+     * וכל מה שאחריו נשמרים (כעותקים, כי ה-decoder ממחזר את הפריים) ל-takeDeferred
+     */
+    /*package*/ Runnable inline(Runnable readTask) {
+        return () -> {
+            inlineRun = true;
+            try {
+                readTask.run();
+            } catch (RuntimeException ex) {
+                // כמו בטרד של ה-pool: הפריים הולך לאיבוד אבל לולאת הסלקטור ממשיכה לרוץ
+                ex.printStackTrace();
+            } finally {
+                inlineRun = false;
+            }
+        };
+    }
+
+    /**
+     * @return משימה שמעבדת את הפריימים שנדחו בריצה על טרד הסלקטור, או null אם לא נדחה כלום
+     */
+    /*package*/ Runnable takeDeferred() {
+        if (deferred == null) {
             return null;
         }
+        List<T> messages = deferred;
+        boolean closeAfter = closeAfterDeferred;
+        deferred = null;
+        closeAfterDeferred = false;
+        DEFERRED_FRAMES.add(messages.size());
+        return () -> {
+            try {
+                for (T message : messages) {
+                    process(message);
+                }
+            } finally {
+                if (closeAfter) {
+                    close();
+                }
+            }
+        };
+    }
+
+    /**
+     * גודל הבאפר הבא לפי ממוצע נע של כמה בתים הגיעו בכל אירוע קריאה: לקוח שמעלה הרבה בבת אחת
+     * מגיע לבאפרים של 64k, ולקוח שולח פריימים קצרים יורד ל-1k. הגדלים הם מחלקות של BufferPool
+     */
+    private void adaptReadBufferSize(long bytesRead) {
+        avgReadBytes += (bytesRead - avgReadBytes) / 4;
+        int target = (int) Math.min(Math.max(avgReadBytes, MIN_READ_BUFFER_SIZE), MAX_READ_BUFFER_SIZE);
+        readBufferSize = Integer.highestOneBit(target - 1) << 1;
+    }
+
+    private void dispatch(T nextMessage) {
+        if (inlineRun) {
+            if (deferred == null && protocol.isCheap(nextMessage)) {
+                INLINE_FRAMES.increment();
+                process(nextMessage);
+            } else {
+                if (deferred == null) {
+                    deferred = new ArrayList<>();
+                }
+                deferred.add(encdec.copy(nextMessage));
+            }
+            return;
+        }
+        process(nextMessage);
+    }
+
+    private void process(T nextMessage) {
+        T response = protocol.process(nextMessage);
+        if (response != null) { //תגובה מיידית לתמיכה בשרתים כמו Echo
+            send(response);
+        }
     }
 
     public void close() {
+        if (!closed.compareAndSet(false, true)) {
+            return;
+        }
+        reactor.connectionClosed();
+        // רץ אחרי מה שכבר בתור של ה-actor - אם הסגירה באה מ-DISCONNECT או מ-ERROR, הפרוטוקול כבר סיים ולא יעשה כלום
+        reactor.submit(this, protocol::connectionLost);
+        THROTTLED.remove(this);
         try {
             chan.close();
         } catch (IOException ex) {
             ex.printStackTrace();
         }
+        flush(0); // מחזיר למאגר את מה שנשאר בתור, אם אף טרד אחר לא כותב כרגע
     }
 
     public boolean isClosed() {
@@ -81,55 +276,355 @@ public class NonBlockingConnectionHandler<T> implements ConnectionHandler<T> {
         // בדיקה שהערוץ בכלל פתוח לפני שמתחילים
         if (!chan.isOpen()) return; 
 
-        while (!writeQueue.isEmpty()) {
+        flush(WRITE_BUDGET_BYTES);
+    }
+
+    /**
+     * מרוקן את תור הכתיבה מהטרד הנוכחי, בין אם זה טרד הסלקטור ובין אם טרד של actor.
+     * רק טרד אחד בכל רגע מחזיק את writing ולכן סדר הפריימים נשמר. טרד שלא הצליח לקחת
+     * את השמירה יוצא מיד - המחזיק בודק את התור שוב אחרי שחרור ויכתוב גם את הפריים שלו.
+     * OP_WRITE נרשם רק כשבאפר השליחה של הסוקט מלא (או שנגמר התקציב של המעבר הנוכחי).
+     */
+    private void flush(long budget) {
+        while (writing.compareAndSet(false, true)) {
+            boolean wantWrite = false;
             try {
-                ByteBuffer top = writeQueue.peek();
-                chan.write(top);
-                if (top.hasRemaining()) {
-                    return;
-                } else {
-                    writeQueue.remove();
+                if (chan.isOpen()) {
+                    wantWrite = !writeOut(budget);
+                    if (wantWrite != writeInterest) {
+                        writeInterest = wantWrite;
+                        reactor.updateInterestedOps(chan);
+                    }
+                    applyBackpressure();
                 }
+                if (!chan.isOpen()) {
+                    discardQueue();
+                }
+            } finally {
+                writing.set(false);
+            }
+
+            if (wantWrite) {
+                return;
+            }
+            if (writeQueue.isEmpty()) {
+                if (protocol.shouldTerminate() || closing) {
+                    close();
+                }
+                return;
+            }
+            // בזמן שהחזקנו את השמירה טרד אחר הוסיף פריים - ממשיכים לכתוב
+        }
+    }
+
+    /**
+     * @return true אם התור התרוקן, false אם הסוקט מלא או שנגמר התקציב
+     */
+    private boolean writeOut(long budget) {
+        while (!writeQueue.isEmpty()) {
+            if (budget <= 0) {
+                return false;
+            }
+
+            // אוספים את ראש התור למערך אחד וכותבים הכל ב-syscall יחיד
+            int count = 0;
+            long batchBytes = 0;
+            for (ByteBuffer buf : writeQueue) {
+                writeBatch[count++] = buf;
+                batchBytes += buf.remaining();
+                if (count == writeBatch.length || batchBytes >= budget) {
+                    break;
+                }
+            }
+
+            try {
+                budget -= chan.write(writeBatch, 0, count);
             } catch (IOException ex) {
                 // אם הייתה שגיאה בכתיבה, סוגרים הכל ומפסיקים
+                Arrays.fill(writeBatch, 0, count, null);
                 close();
-                return; 
+                return true;
+            }
+
+            // מוציאים מהתור רק פריימים שנכתבו עד הסוף. פריים שנכתב חלקית נשאר בראש
+            // התור עם ה-position המעודכן שלו, והכתיבה הבאה ממשיכה ממנו
+            int done = 0;
+            while (done < count && !writeBatch[done].hasRemaining()) {
+                dequeuedHead(writeQueue.remove());
+                done++;
+            }
+            Arrays.fill(writeBatch, 0, count, null);
+            WRITE_CALLS.increment();
+            FRAMES_WRITTEN.add(done);
+
+            if (done < count) {
+                return false; // באפר השליחה של הסוקט מלא, נחכה ל-OP_WRITE
             }
         }
+        return true;
+    }
 
-        if (writeQueue.isEmpty()) {
-            if (protocol.shouldTerminate()) {
-                close();
-            } else {
-                // חשוב: אם אין יותר מה לכתוב, נחזור להקשיב רק לקריאה (READ)
-                reactor.updateInterestedOps(chan, SelectionKey.OP_READ);
+    /**
+     * נקרא כשהטרד מחזיק את writing. בודק את גודל התור מול ה-water marks ומפעיל את המדיניות
+     */
+    private void applyBackpressure() {
+        long queued = queuedBytes.get();
+        if (queued >= HIGH_WATER_BYTES && !closing) {
+            switch (SLOW_CONSUMER_POLICY) {
+                case DROP_OLDEST:
+                    dropQueued(LOW_WATER_BYTES);
+                    break;
+                case PAUSE_READING:
+                    if (!readPaused) {
+                        readPaused = true;
+                        reactor.updateInterestedOps(chan);
+                    }
+                    break;
+                default:
+                    closing = true;
+                    readPaused = true;
+                    reactor.updateInterestedOps(chan);
+                    synchronized (writeQueue) {
+                        dropQueued(0);
+                        ByteBuffer error = ByteBuffer.wrap(SLOW_CONSUMER_ERROR);
+                        writeQueue.add(error);
+                        queued(error.remaining());
+                    }
+                    // לקוח שלא קורא בכלל לא יפנה מקום גם ל-ERROR, ואז OP_WRITE לא יגיע לעולם והחיבור
+                    // (והסשן שלו) יישארו פתוחים. אם הכתיבה לא מתקדמת עכשיו - סוגרים בלי לחכות לו
+                    if (!writeOut(Long.MAX_VALUE)) {
+                        close();
+                    }
             }
+        } else if (readPaused && !closing && queued <= LOW_WATER_BYTES) {
+            readPaused = false;
+            reactor.updateInterestedOps(chan);
         }
     }
 
-    private static ByteBuffer leaseBuffer() {
-        ByteBuffer buff = BUFFER_POOL.poll();
-        if (buff == null) {
-            return ByteBuffer.allocateDirect(BUFFER_ALLOCATION_SIZE);
+    /**
+     * זורק פריימים שלמים מראש התור עד שנשארים לכל היותר target בתים.
+     * הפריים שכבר התחיל לצאת לסוקט נשאר, אחרת הזרם ייקטע באמצע פריים.
+     * פריים של שידור הוא prefix ואחריו חלק משותף לקריאה בלבד, ולכן באפר לקריאה בלבד
+     * אף פעם לא פותח פריים - הוא נזרק או נשאר יחד עם ה-prefix שלפניו.
+     */
+    private void dropQueued(long target) {
+        synchronized (writeQueue) { // כדי ש-prefix וחלק משותף של פריים חדש לא ייכנסו בנפרד באמצע
+            Iterator<ByteBuffer> it = writeQueue.iterator();
+            Iterator<SharedBuffer> shared = sharedQueued.iterator(); // מתקדם יחד עם החלקים המשותפים
+            boolean head = true;
+            boolean dropping = false;
+            while (it.hasNext()) {
+                ByteBuffer buf = it.next();
+                SharedBuffer lease = buf.isReadOnly() ? shared.next() : null;
+                if (lease == null) {
+                    if (head && buf.position() > 0) {
+                        head = false;
+                        continue; // הפריים שבאמצע כתיבה
+                    }
+                    head = false;
+                    if (queuedBytes.get() <= target) {
+                        return;
+                    }
+                    dropping = true;
+                    droppedFrames.increment();
+                } else if (!dropping) {
+                    head = false;
+                    continue; // החלק המשותף של הפריים שבאמצע כתיבה
+                }
+                it.remove();
+                dequeued(buf);
+                if (lease != null) {
+                    shared.remove();
+                    lease.release();
+                }
+            }
+        }
+    }
+
+    // נקרא רק כשהערוץ סגור ומחזיקים את writing
+    private void discardQueue() {
+        ByteBuffer buf;
+        while ((buf = writeQueue.poll()) != null) {
+            dequeuedHead(buf);
+        }
+    }
+
+    private void queued(int bytes) {
+        long now = queuedBytes.addAndGet(bytes);
+        if (now > peakQueuedBytes) {
+            peakQueuedBytes = now;
+        }
+        long total = TOTAL_QUEUED_BYTES.addAndGet(bytes);
+        if (total > peakTotalQueuedBytes) {
+            peakTotalQueuedBytes = total;
+        }
+    }
+
+    // באפר שיצא מראש התור. חלק משותף הוא תמיד הראשון שנשאר ב-sharedQueued, ומשחררים גם את ההפניה שלו
+    private void dequeuedHead(ByteBuffer buf) {
+        dequeued(buf);
+        if (buf.isReadOnly()) {
+            sharedQueued.remove().release();
+        }
+    }
+
+    // באפר שיצא מהתור (נכתב או נזרק): מורידים אותו מהספירה ומחזירים למאגר
+    private void dequeued(ByteBuffer buf) {
+        queuedBytes.addAndGet(-buf.limit());
+        long total = TOTAL_QUEUED_BYTES.addAndGet(-buf.limit());
+        BufferPool.release(buf);
+        if (total <= GLOBAL_LOW_WATER_BYTES && !THROTTLED.isEmpty()) {
+            resumeThrottled();
+        }
+    }
+
+    // נקרא מטרד הסלקטור כשהגיע קלט מהחיבור והתקציב הגלובלי מלא
+    private void throttle() {
+        throttled = true;
+        THROTTLED.add(this);
+        THROTTLE_EVENTS.increment();
+        reactor.updateInterestedOps(chan);
+        // ה-backlog יכול היה להתרוקן בין הבדיקה להוספה, ואז אף אחד אחר לא יחדש את הקריאה
+        if (TOTAL_QUEUED_BYTES.get() <= GLOBAL_LOW_WATER_BYTES) {
+            resumeThrottled();
+        }
+    }
+
+    private static void resumeThrottled() {
+        for (NonBlockingConnectionHandler<?> handler : THROTTLED) {
+            if (THROTTLED.remove(handler)) {
+                handler.throttled = false;
+                handler.reactor.updateInterestedOps(handler.chan);
+            }
         }
+    }
+
+    /**
+     * @return כמה בתים ממתינים כרגע בתור היציאה של החיבור
+     */
+    public long queuedBytes() {
+        return queuedBytes.get();
+    }
+
+    public long peakQueuedBytes() {
+        return peakQueuedBytes;
+    }
+
+    /**
+     * @return כמה פריימים נזרקו מהתור בגלל backpressure
+     */
+    public long droppedFrames() {
+        return droppedFrames.sum();
+    }
+
+    /**
+     * @return כמה בתים ממתינים כרגע בתורי היציאה של כל החיבורים יחד.
+     * החלק המשותף של שידור נספר פעם אחת לכל מנוי, כמו שהוא ייכתב לסוקטים
+     */
+    public static long totalQueuedBytes() {
+        return TOTAL_QUEUED_BYTES.get();
+    }
+
+    public static long peakTotalQueuedBytes() {
+        return peakTotalQueuedBytes;
+    }
+
+    /**
+     * @return כמה חיבורים מושהים כרגע בגלל התקציב הגלובלי
+     */
+    public static int throttledConnections() {
+        return THROTTLED.size();
+    }
+
+    /**
+     * @return כמה פעמים חיבור הושהה בגלל התקציב הגלובלי
+     */
+    public static long throttleEvents() {
+        return THROTTLE_EVENTS.sum();
+    }
+
+    /*package*/ ActorThreadPool.Mailbox mailbox() {
+        return mailbox;
+    }
 
-        buff.clear();
-        return buff;
+    /*package*/ void startReading() {
+        reading = true;
+        reactor.updateInterestedOps(chan);
     }
 
-    private static void releaseBuffer(ByteBuffer buff) {
-        BUFFER_POOL.add(buff);
+    /**
+     * @return true אם אין עדיין עדכון interest ops שמחכה לסלקטור, ועכשיו יש
+     */
+    /*package*/ boolean markInterestPending() {
+        return interestPending.compareAndSet(false, true);
+    }
+
+    /*package*/ void clearInterestPending() {
+        interestPending.set(false);
+    }
+
+    /**
+     * @return ה-interest ops שהסלקטור צריך להחזיק עבור החיבור לפי המצב הנוכחי שלו
+     */
+    /*package*/ int interestOps() {
+        return (reading && !readPaused && !throttled ? SelectionKey.OP_READ : 0) | (writeInterest ? SelectionKey.OP_WRITE : 0);
+    }
+
+    /**
+     * @return the average number of frames completed per gathering write syscall, across all connections
+     */
+    public static double framesPerWrite() {
+        long calls = WRITE_CALLS.sum();
+        return calls == 0 ? 0 : (double) FRAMES_WRITTEN.sum() / calls;
+    }
+
+    /**
+     * @return כמה פריימים זולים עובדו ישר על טרד הסלקטור (reactor.inlineCheapFrames)
+     */
+    public static long inlineFrames() {
+        return INLINE_FRAMES.sum();
+    }
+
+    /**
+     * @return כמה פריימים נקראו בריצה על טרד הסלקטור אבל הועברו ל-actor, כי לא היו זולים או באו אחרי פריים כזה
+     */
+    public static long deferredFrames() {
+        return DEFERRED_FRAMES.sum();
     }
 
     @Override
     public void send(T msg) {
-        if (msg != null) {
-            byte[] encodedMsg = encdec.encode(msg);
+        if (msg != null && !closing) {
+            // מקודדים ישר לבאפר ישיר מהמאגר, והוא חוזר למאגר כשהכתיבה שלו מסתיימת
+            ByteBuffer encodedMsg = encdec.encode(msg, BufferPool::acquire);
             if (encodedMsg != null) {
-                writeQueue.add(ByteBuffer.wrap(encodedMsg));
-                //לעדכן את הריאקטור שיש מידע מוכן לכתיבה
-                reactor.updateInterestedOps(chan, SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+                synchronized (writeQueue) {
+                    writeQueue.add(encodedMsg);
+                    queued(encodedMsg.remaining());
+                }
+                // מסלול מהיר: מנסים לכתוב ישר מהטרד הנוכחי, והריאקטור מעורב רק אם הסוקט מלא
+                flush(Long.MAX_VALUE);
             }
         }
     }
+
+    @Override
+    public void sendEncoded(ByteBuffer prefix, SharedBuffer shared) {
+        if (closing) {
+            return;
+        }
+        ByteBuffer view = shared.view();
+        shared.retain(); // משתחררת כשהחלק המשותף יוצא מהתור (dequeuedHead / dropQueued)
+        // ההוספות לתור מסונכרנות על התור של החיבור הזה בלבד, כדי ש-prefix והחלק המשותף
+        // ייכנסו ברצף ולא יתערבבו עם פריים של טרד אחר. ההפניה נכנסת קודם, כך שמי שכותב
+        // את החלק המשותף תמיד מוצא אותה
+        synchronized (writeQueue) {
+            sharedQueued.add(shared);
+            writeQueue.add(prefix);
+            writeQueue.add(view);
+            queued(prefix.remaining() + view.remaining());
+        }
+        flush(Long.MAX_VALUE);
+    }
 }
\ No newline at end of file
@@ -5,165 +5,211 @@ import bgu.spl.net.api.MessagingProtocol;
 import bgu.spl.net.api.StompMessagingProtocol; 
 import java.io.IOException;
 import java.net.InetSocketAddress;
-import java.nio.channels.ClosedSelectorException;
-import java.nio.channels.SelectionKey;
-import java.nio.channels.Selector;
 import java.nio.channels.ServerSocketChannel;
 import java.nio.channels.SocketChannel;
-import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.function.Supplier;
 
 public class Reactor<T> implements Server<T> {
 
     private final int port;
-    private final Supplier<MessagingProtocol<T>> protocolFactory; 
+    private final Supplier<MessagingProtocol<T>> protocolFactory;
     private final Supplier<MessageEncoderDecoder<T>> readerFactory;
     private final ActorThreadPool pool;
-    private Selector selector;
+    private final int numSelectors;
+
+    // acceptor - הלולאה שרצה על הטרד של serve ומקבלת חיבורים חדשים
+    // ioReactors - הלולאות שמטפלות בקריאה/כתיבה. במצב הרגיל זו אותה לולאה בדיוק
+    private volatile SubReactor<T> acceptor;
+    private volatile SubReactor<T>[] ioReactors;
+    private int nextIoReactor = 0;
 
-    private Thread selectorThread;
-    private final ConcurrentLinkedQueue<Runnable> selectorTasks = new ConcurrentLinkedQueue<>();
-    
     //מונה אטומי בשביל ID ייחודי, רשימת חיבורים.
     private final ConnectionsImpl<T> connections;
     private final AtomicInteger connectionIdCounter;
 
+    // כל כמה שניות להדפיס את קצב ה-wakeups של הסלקטורים בזמן ריצה. 0 = רק בסוף, מה-shutdown hook
+    private static final int STATS_INTERVAL_SECONDS = Integer.getInteger("reactor.statsIntervalSeconds", 0);
+
     public Reactor(
             int numThreads,
             int port,
             Supplier<MessagingProtocol<T>> protocolFactory, //מעודכן
             Supplier<MessageEncoderDecoder<T>> readerFactory) {
+        this(numThreads, 0, port, protocolFactory, readerFactory);
+    }
+
+    /**
+     * @param numSelectors מספר ה-sub-reactors שמטפלים ב-I/O. 0 = סלקטור יחיד לכל העבודה
+     */
+    public Reactor(
+            int numThreads,
+            int numSelectors,
+            int port,
+            Supplier<MessagingProtocol<T>> protocolFactory,
+            Supplier<MessageEncoderDecoder<T>> readerFactory) {
 
         this.pool = new ActorThreadPool(numThreads);
+        this.numSelectors = numSelectors;
         this.port = port;
         this.protocolFactory = protocolFactory;
         this.readerFactory = readerFactory;
-        
-        this.connections = new ConnectionsImpl<>();
+
+        this.connections = new ConnectionsImpl<>(true); // שליחה למנוי רק מוסיפה לתור, אפשר לשדר ממסלולים
         this.connectionIdCounter = new AtomicInteger(1);
     }
 
     @Override
+    @SuppressWarnings({"unchecked", "rawtypes"})
     public void serve() {
-        selectorThread = Thread.currentThread();
-        try (Selector selector = Selector.open();
-                ServerSocketChannel serverSock = ServerSocketChannel.open()) {
+        long startTime = System.nanoTime();
+        // השרת נעצר בדרך כלל ב-SIGTERM או Ctrl-C, ואז serve לא חוזר - המונים מודפסים מ-shutdown hook, כמו ב-Database
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> printStats(startTime), "reactor-stats"));
+        if (STATS_INTERVAL_SECONDS > 0) {
+            startStatsLogger();
+        }
+        try (ServerSocketChannel serverSock = ServerSocketChannel.open()) {
 
-            this.selector = selector; //כדי שנוכל לסגור
+            acceptor = new SubReactor<>(this);
+            if (numSelectors > 0) {
+                ioReactors = new SubReactor[numSelectors];
+                for (int i = 0; i < numSelectors; i++) {
+                    ioReactors[i] = new SubReactor<>(this);
+                }
+            } else {
+                ioReactors = new SubReactor[] { acceptor };
+            }
 
             serverSock.bind(new InetSocketAddress(port));
             serverSock.configureBlocking(false);
-            serverSock.register(selector, SelectionKey.OP_ACCEPT);
-            System.out.println("Server started");
-
-            while (!Thread.currentThread().isInterrupted()) {
-
-                selector.select();
-                runSelectionThreadTasks();
+            acceptor.registerAcceptor(serverSock);
 
-                for (SelectionKey key : selector.selectedKeys()) {
-
-                    if (!key.isValid()) {
-                        continue;
-                    } else if (key.isAcceptable()) {
-                        handleAccept(serverSock, selector);
-                    } else {
-                        handleReadWrite(key);
-                    }
+            if (numSelectors > 0) {
+                for (int i = 0; i < numSelectors; i++) {
+                    new Thread(ioReactors[i], "sub-reactor-" + i).start();
                 }
-
-                selector.selectedKeys().clear(); //לנקות מפתחות קיימים כדי שנוכל לקבל אירועים חדשים
-
             }
+            System.out.println("Server started");
+
+            acceptor.run();
 
-        } catch (ClosedSelectorException ex) {
-            //אם ביקשו שנסגור את השרת - לא לעשות כלום
         } catch (IOException ex) {
             ex.printStackTrace();
+        } finally {
+            try {
+                close();
+            } catch (IOException ex) {}
         }
 
         System.out.println("server closed!!!");
         pool.shutdown();
     }
 
-    /*package*/ void updateInterestedOps(SocketChannel chan, int ops) {
-        final SelectionKey key = chan.keyFor(selector);
-        
-        // הגנה ראשונה: אם המפתח כבר לא קיים או בוטל, אין מה לעדכן
-        if (key == null || !key.isValid()) {
-            return;
-        }
+    private static void printStats(long startTime) {
+        System.out.printf("frames per write syscall: %.2f%n", NonBlockingConnectionHandler.framesPerWrite());
+        System.out.printf("buffer pool: %d hits, %d misses, %d outstanding%n",
+                BufferPool.hits(), BufferPool.misses(), BufferPool.outstanding());
+        System.out.printf("outbound queue: peak %d bytes, publishers throttled %d times%n",
+                NonBlockingConnectionHandler.peakTotalQueuedBytes(), NonBlockingConnectionHandler.throttleEvents());
+        System.out.printf("frames run inline on the selector: %d, handed to the pool after them: %d%n",
+                NonBlockingConnectionHandler.inlineFrames(), NonBlockingConnectionHandler.deferredFrames());
+        double seconds = Math.max(1e-9, (System.nanoTime() - startTime) / 1e9);
+        System.out.printf("selector wakeups: %d (%.1f/s), %d interest updates coalesced%n",
+                SubReactor.wakeups(), SubReactor.wakeups() / seconds, SubReactor.coalescedUpdates());
+    }
 
-        if (Thread.currentThread() == selectorThread) {
-            key.interestOps(ops);
-        } else {
-            selectorTasks.add(() -> {
-                // הגנה שנייה: בדיקה חוזרת בתוך התור, כי המפתח יכול היה להתבטל
-                // בזמן שהמשימה חיכתה בתור לביצוע
-                if (key.isValid()) {
-                    key.interestOps(ops);
+    // הממוצע שמודפס בסוף כולל את כל הזמן שהשרת עמד ריק. כאן רואים את הקצב בזמן עומס
+    private static void startStatsLogger() {
+        Thread logger = new Thread(() -> {
+            long wakeups = SubReactor.wakeups();
+            long coalesced = SubReactor.coalescedUpdates();
+            while (true) {
+                try {
+                    Thread.sleep(STATS_INTERVAL_SECONDS * 1000L);
+                } catch (InterruptedException e) {
+                    return;
                 }
-            });
-            selector.wakeup();
-        }
+                long nowWakeups = SubReactor.wakeups();
+                long nowCoalesced = SubReactor.coalescedUpdates();
+                System.out.printf("selector wakeups: %.1f/s, %.1f interest updates coalesced/s%n",
+                        (nowWakeups - wakeups) / (double) STATS_INTERVAL_SECONDS,
+                        (nowCoalesced - coalesced) / (double) STATS_INTERVAL_SECONDS);
+                wakeups = nowWakeups;
+                coalesced = nowCoalesced;
+            }
+        }, "reactor-stats-logger");
+        logger.setDaemon(true);
+        logger.start();
     }
 
-    private void handleAccept(ServerSocketChannel serverChan, Selector selector) throws IOException {
+    /*package*/ void handleAccept(ServerSocketChannel serverChan) throws IOException {
         SocketChannel clientChan = serverChan.accept();
+        if (clientChan == null) {
+            return;
+        }
         clientChan.configureBlocking(false);
 
+        SubReactor<T> target = chooseIoReactor();
         int connectionId = connectionIdCounter.getAndIncrement();
-        MessagingProtocol<T> protocol = protocolFactory.get(); 
-        
+        MessagingProtocol<T> protocol = protocolFactory.get();
+
         //יצירת האנדלר עם הפרוטוקול הגנרי
         final NonBlockingConnectionHandler<T> handler = new NonBlockingConnectionHandler<>(
                 readerFactory.get(),
                 protocol,
                 clientChan,
-                this);
-                
+                target);
+
         connections.addConnection(connectionId, handler);
 
-        // בדיקה אם הפרוטוקול הוא STOMP ואם כן, start
-        pool.submit(handler, () -> {
+        // רישום ראשוני עם interest ריק כדי למנוע קריאה לפני start.
+        // את start מגישים רק אחרי שהרישום בוצע בטרד של ה-sub-reactor,
+        // אחרת עדכון ה-OP_READ עלול לרוץ לפני שיש מפתח ולהיעלם
+        target.register(clientChan, handler, () -> pool.submit(handler.mailbox(), () -> {
             if (protocol instanceof StompMessagingProtocol) {
                 ((StompMessagingProtocol<T>) protocol).start(connectionId, connections);
             }
-            
+
             // פותחים ערוץ לקריאה רק אחרי start
-            updateInterestedOps(clientChan, SelectionKey.OP_READ);
-        });
-    
-    // רישום ראשוני כדי למנוע קריאה לפני start
-    clientChan.register(selector, 0, handler); 
-}
-
-    private void handleReadWrite(SelectionKey key) {
-        @SuppressWarnings("unchecked")
-        NonBlockingConnectionHandler<T> handler = (NonBlockingConnectionHandler<T>) key.attachment();
-
-        if (key.isReadable()) {
-            Runnable task = handler.continueRead();
-            if (task != null) {
-                pool.submit(handler, task);
-            }
-        }
+            handler.startReading();
+        }));
+    }
 
-        if (key.isValid() && key.isWritable()) {
-            handler.continueWrite();
-        }
+    /*package*/ void submit(NonBlockingConnectionHandler<T> handler, Runnable task) {
+        pool.submit(handler.mailbox(), task);
+    }
+
+    /*package*/ boolean tryRunInline(NonBlockingConnectionHandler<T> handler, Runnable task) {
+        return pool.tryRunInline(handler.mailbox(), task);
     }
 
-    private void runSelectionThreadTasks() {
-        while (!selectorTasks.isEmpty()) {
-            selectorTasks.remove().run();
+    // הלולאה עם הכי מעט חיבורים, כשנקודת ההתחלה מתחלפת סבב-סבב כדי לשבור שוויון
+    private SubReactor<T> chooseIoReactor() {
+        SubReactor<T>[] reactors = ioReactors;
+        int start = nextIoReactor;
+        nextIoReactor = (start + 1) % reactors.length;
+
+        SubReactor<T> best = reactors[start];
+        for (int i = 1; i < reactors.length; i++) {
+            SubReactor<T> candidate = reactors[(start + i) % reactors.length];
+            if (candidate.connectionCount() < best.connectionCount()) {
+                best = candidate;
+            }
         }
+        return best;
     }
 
     @Override
     public void close() throws IOException {
-        selector.close();
+        SubReactor<T>[] reactors = ioReactors;
+        if (reactors != null) {
+            for (SubReactor<T> reactor : reactors) {
+                reactor.close();
+            }
+        }
+        if (acceptor != null) {
+            acceptor.close();
+        }
     }
 
 }
\ No newline at end of file
@@ -34,6 +34,36 @@ public interface Server<T> extends Closeable {
 
     }
 
+    /**
+     *This function returns a new instance of a thread per client pattern server
+     * that runs every client on a virtual thread
+     * @param port The port for the server socket
+     * @param protocolFactory A factory that creats new MessagingProtocols
+     * @param encoderDecoderFactory A factory that creats new MessageEncoderDecoder
+     * @param <T> The Message Object for the protocol
+     * @return A new virtual thread per client server
+     * @throws UnsupportedOperationException if the JVM has no virtual threads (before Java 21)
+     */
+    public static <T> Server<T> virtualThreadPerClient(
+            int port,
+            Supplier<MessagingProtocol<T> > protocolFactory,
+            Supplier<MessageEncoderDecoder<T> > encoderDecoderFactory) {
+
+        // בלי טרדים וירטואליים זה סתם tpc, ומי שביקש vtpc צריך לדעת את זה ולא לגלות בעומס
+        if (!VirtualThreads.available()) {
+            throw new UnsupportedOperationException("vtpc needs virtual threads (Java 21 or later), but this JVM is Java "
+                    + System.getProperty("java.version") + ". Run it on a newer JVM, or use tpc");
+        }
+
+        return new BaseServer<T>(port, protocolFactory, encoderDecoderFactory) {
+            @Override
+            protected void execute(BlockingConnectionHandler<T>  handler) {
+                VirtualThreads.start(handler);
+            }
+        };
+
+    }
+
     /**
      * This function returns a new instance of a reactor pattern server
      * @param nthreads Number of threads available for protocol processing
@@ -51,4 +81,25 @@ public interface Server<T> extends Closeable {
         return new Reactor<T>(nthreads, port, protocolFactory, encoderDecoderFactory);
     }
 
+    /**
+     * This function returns a new instance of a multi-selector reactor server:
+     * one acceptor thread hands new connections to nselectors sub-reactors,
+     * each running its own selector on its own thread
+     * @param nthreads Number of threads available for protocol processing
+     * @param nselectors Number of sub-reactor event loops doing the network I/O
+     * @param port The port for the server socket
+     * @param protocolFactory A factory that creats new MessagingProtocols
+     * @param encoderDecoderFactory A factory that creats new MessageEncoderDecoder
+     * @param <T> The Message Object for the protocol
+     * @return A new multi-selector reactor server
+     */
+    public static <T> Server<T> multiReactor(
+            int nthreads,
+            int nselectors,
+            int port,
+            Supplier<MessagingProtocol<T>> protocolFactory,
+            Supplier<MessageEncoderDecoder<T>> encoderDecoderFactory) {
+        return new Reactor<T>(nthreads, nselectors, port, protocolFactory, encoderDecoderFactory);
+    }
+
 }
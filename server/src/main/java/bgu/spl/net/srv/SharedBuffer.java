@@ -0,0 +1,47 @@
+package bgu.spl.net.srv;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * החלק המשותף של פריים שידור, בבאפר מ-BufferPool עם מונה הפניות.
+ * מי שקודד את השידור מחזיק הפניה אחת עד שסיים לחלק אותו למנויים. חיבור שמכניס את
+ * הפריים לתור שלו לוקח הפניה (retain) ומשחרר אותה (release) כשהפריים נכתב או נזרק,
+ * וההפניה האחרונה שמשתחררת מחזירה את הבאפר למאגר.
+ */
+public final class SharedBuffer {
+
+    private final ByteBuffer pooled;
+    private final ByteBuffer frame;
+    private final AtomicInteger refs = new AtomicInteger(1);
+
+    /**
+     * @param pooled הבאפר כמו שהתקבל מ-BufferPool.acquire
+     * @param frame החלק של pooled שנשלח, לקריאה בלבד
+     */
+    SharedBuffer(ByteBuffer pooled, ByteBuffer frame) {
+        this.pooled = pooled;
+        this.frame = frame;
+    }
+
+    /**
+     * @return תצוגה של הפריים עם position ו-limit משלה, לקריאה בלבד. תקפה רק כל עוד מחזיקים הפניה
+     */
+    public ByteBuffer view() {
+        return frame.duplicate();
+    }
+
+    public int remaining() {
+        return frame.remaining();
+    }
+
+    public void retain() {
+        refs.incrementAndGet();
+    }
+
+    public void release() {
+        if (refs.decrementAndGet() == 0) {
+            BufferPool.release(pooled);
+        }
+    }
+}
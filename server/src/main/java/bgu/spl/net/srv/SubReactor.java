@@ -0,0 +1,223 @@
+package bgu.spl.net.srv;
+
+import java.io.IOException;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * לולאת אירועים אחת של הריאקטור: סלקטור, תור משימות ו-wakeup משלה.
+ * במצב הרגיל יש לולאה אחת שגם מקבלת חיבורים וגם קוראת/כותבת,
+ * ובמצב multi-reactor לולאת ה-acceptor מחלקת חיבורים ל-N לולאות כאלה.
+ */
+class SubReactor<T> implements Runnable {
+
+    private final Reactor<T> reactor;
+    private final Selector selector;
+    private final ConcurrentLinkedQueue<Runnable> selectorTasks = new ConcurrentLinkedQueue<>();
+    // מפתחות שה-interest ops שלהם צריכים עדכון. כל handler נכנס לכאן לכל היותר פעם אחת עד שהסלקטור מטפל בו
+    private final ConcurrentLinkedQueue<SelectionKey> dirtyKeys = new ConcurrentLinkedQueue<>();
+    // כבר נשלח wakeup שהסלקטור עוד לא התעורר ממנו - אין צורך בעוד אחד
+    private final AtomicBoolean wakeupPending = new AtomicBoolean(false);
+    private final AtomicInteger connectionCount = new AtomicInteger(0);
+    private volatile Thread selectorThread;
+
+    // מצב אופציונלי: פריימים זולים (לפי MessagingProtocol.isCheap) רצים על טרד הסלקטור בלי מעבר ל-actor
+    private static final boolean INLINE_CHEAP_FRAMES = Boolean.getBoolean("reactor.inlineCheapFrames");
+
+    private static final LongAdder WAKEUPS = new LongAdder();
+    private static final LongAdder COALESCED_UPDATES = new LongAdder();
+
+    SubReactor(Reactor<T> reactor) throws IOException {
+        this.reactor = reactor;
+        this.selector = Selector.open();
+    }
+
+    @Override
+    public void run() {
+        selectorThread = Thread.currentThread();
+        try {
+            while (!Thread.currentThread().isInterrupted()) {
+
+                selector.select();
+                // מאפסים לפני הריקון: מי שמוסיף עבודה מעכשיו יעיר את ה-select הבא
+                wakeupPending.set(false);
+                runSelectionThreadTasks();
+                updateDirtyKeys();
+
+                for (SelectionKey key : selector.selectedKeys()) {
+                    try {
+                        if (!key.isValid()) {
+                            continue;
+                        } else if (key.isAcceptable()) {
+                            reactor.handleAccept((ServerSocketChannel) key.channel());
+                        } else {
+                            handleReadWrite(key);
+                        }
+                    } catch (CancelledKeyException ex) {
+                        // טרד אחר סגר את החיבור (למשל actor אחרי DISCONNECT) בין הבדיקה לשימוש במפתח
+                    }
+                }
+
+                selector.selectedKeys().clear(); //לנקות מפתחות קיימים כדי שנוכל לקבל אירועים חדשים
+            }
+        } catch (ClosedSelectorException ex) {
+            //אם ביקשו שנסגור את השרת - לא לעשות כלום
+        } catch (IOException ex) {
+            ex.printStackTrace();
+        }
+    }
+
+    /*package*/ void registerAcceptor(ServerSocketChannel serverSock) throws ClosedChannelException {
+        // נקרא לפני שהלולאה מתחילה לרוץ, לכן אפשר לרשום ישירות
+        serverSock.register(selector, SelectionKey.OP_ACCEPT);
+    }
+
+    /**
+     * רישום ערוץ לקוח בסלקטור של הלולאה הזו. הרישום חייב לקרות בטרד של הלולאה
+     * (אחרת register נחסם מול select), ולכן מטרד אחר הוא עובר דרך תור המשימות.
+     * onRegistered רץ אחרי הרישום, כך שעדכוני interest ops שלו לא הולכים לאיבוד.
+     */
+    /*package*/ void register(SocketChannel chan, NonBlockingConnectionHandler<T> handler, Runnable onRegistered) {
+        Runnable registration = () -> {
+            connectionCount.incrementAndGet(); // סגירת ה-handler מורידה את המונה בחזרה
+            try {
+                chan.register(selector, 0, handler);
+                onRegistered.run();
+            } catch (ClosedChannelException ex) {
+                handler.close();
+            }
+        };
+
+        if (Thread.currentThread() == selectorThread) {
+            registration.run();
+        } else {
+            selectorTasks.add(registration);
+            wakeup();
+        }
+    }
+
+    /**
+     * מעדכן את ה-interest ops של החיבור לפי המצב שה-handler מחזיק (interestOps).
+     * המצב נקרא בזמן הביצוע ולא בזמן הבקשה, כך שעדכון ישן לא יכול לדרוס מצב חדש יותר.
+     * מטרד אחר המפתח מסומן כמלוכלך פעם אחת בלבד עד שהסלקטור מעדכן אותו, כך ששידור לאלפי
+     * מנויים לא יוצר אלפי משימות ואלפי wakeups - לכל היותר wakeup אחד לכל סיבוב של select.
+     */
+    @SuppressWarnings("unchecked")
+    /*package*/ void updateInterestedOps(SocketChannel chan) {
+        final SelectionKey key = chan.keyFor(selector);
+
+        // הגנה ראשונה: אם המפתח כבר לא קיים או בוטל, אין מה לעדכן
+        if (key == null || !key.isValid()) {
+            return;
+        }
+
+        if (Thread.currentThread() == selectorThread) {
+            try {
+                key.interestOps(((NonBlockingConnectionHandler<T>) key.attachment()).interestOps());
+            } catch (CancelledKeyException ex) {
+                // החיבור נסגר מטרד אחר אחרי הבדיקה
+            }
+        } else {
+            if (((NonBlockingConnectionHandler<T>) key.attachment()).markInterestPending()) {
+                dirtyKeys.add(key);
+                wakeup();
+            } else {
+                COALESCED_UPDATES.increment();
+            }
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private void updateDirtyKeys() {
+        SelectionKey key;
+        while ((key = dirtyKeys.poll()) != null) {
+            NonBlockingConnectionHandler<T> handler = (NonBlockingConnectionHandler<T>) key.attachment();
+            // מנקים לפני הקריאה של המצב, כך שעדכון שמגיע מעכשיו יסמן את המפתח מחדש
+            handler.clearInterestPending();
+            // הגנה שנייה: המפתח יכול היה להתבטל בזמן שחיכה לעדכון, וגם בין הבדיקה לעדכון
+            try {
+                if (key.isValid()) {
+                    key.interestOps(handler.interestOps());
+                }
+            } catch (CancelledKeyException ex) {
+                // החיבור נסגר מטרד אחר, אין מה לעדכן
+            }
+        }
+    }
+
+    private void wakeup() {
+        if (wakeupPending.compareAndSet(false, true)) {
+            WAKEUPS.increment();
+            selector.wakeup();
+        }
+    }
+
+    /**
+     * @return כמה קריאות selector.wakeup בוצעו בכל הלולאות
+     */
+    /*package*/ static long wakeups() {
+        return WAKEUPS.sum();
+    }
+
+    /**
+     * @return כמה בקשות לעדכון interest ops אוחדו עם עדכון שכבר חיכה לסלקטור
+     */
+    /*package*/ static long coalescedUpdates() {
+        return COALESCED_UPDATES.sum();
+    }
+
+    /*package*/ void connectionClosed() {
+        connectionCount.decrementAndGet();
+    }
+
+    /*package*/ void submit(NonBlockingConnectionHandler<T> handler, Runnable task) {
+        reactor.submit(handler, task);
+    }
+
+    /*package*/ int connectionCount() {
+        return connectionCount.get();
+    }
+
+    private void handleReadWrite(SelectionKey key) {
+        @SuppressWarnings("unchecked")
+        NonBlockingConnectionHandler<T> handler = (NonBlockingConnectionHandler<T>) key.attachment();
+
+        if (key.isReadable()) {
+            Runnable task = handler.continueRead();
+            if (task != null) {
+                if (INLINE_CHEAP_FRAMES && reactor.tryRunInline(handler, handler.inline(task))) {
+                    // מה שלא היה זול (וכל מה שאחריו) ממשיך ב-actor, באותו סדר
+                    Runnable rest = handler.takeDeferred();
+                    if (rest != null) {
+                        reactor.submit(handler, rest);
+                    }
+                } else {
+                    reactor.submit(handler, task);
+                }
+            }
+        }
+
+        if (key.isValid() && key.isWritable()) {
+            handler.continueWrite();
+        }
+    }
+
+    private void runSelectionThreadTasks() {
+        while (!selectorTasks.isEmpty()) {
+            selectorTasks.remove().run();
+        }
+    }
+
+    /*package*/ void close() throws IOException {
+        selector.close();
+    }
+}
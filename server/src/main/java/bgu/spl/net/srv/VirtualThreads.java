@@ -0,0 +1,36 @@
+package bgu.spl.net.srv;
+
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * יוצר טרדים וירטואליים כשה-JVM תומך בהם (Java 21 ומעלה).
+ * הגישה היא דרך reflection כדי שהקוד יתקמפל גם מול JDK 17.
+ */
+final class VirtualThreads {
+
+    // null כשאין טרדים וירטואליים ב-JVM הזה
+    private static final ThreadFactory FACTORY = createFactory();
+
+    private VirtualThreads() {}
+
+    /*package*/ static boolean available() {
+        return FACTORY != null;
+    }
+
+    /*package*/ static Thread start(Runnable task) {
+        Thread thread = FACTORY.newThread(task);
+        thread.start();
+        return thread;
+    }
+
+    private static ThreadFactory createFactory() {
+        try {
+            Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+            Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+            builder = builderClass.getMethod("name", String.class, long.class).invoke(builder, "client-", 0L);
+            return (ThreadFactory) builderClass.getMethod("factory").invoke(builder);
+        } catch (ReflectiveOperationException | RuntimeException ex) {
+            return null;
+        }
+    }
+}
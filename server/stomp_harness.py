@@ -0,0 +1,196 @@
+"""
+Helpers shared by the STOMP server tests and benchmarks in this directory.
+
+running_server() starts sql_server.py in a temporary directory (so the real stomp_server.db
+is not touched) on port 7778, which Database.java connects to, and then the STOMP server
+itself from target/classes - run `mvn compile` first.
+StompClient is a minimal blocking client that speaks just enough STOMP for the tests.
+"""
+
+import contextlib
+import os
+import re
+import socket
+import subprocess
+import sys
+import tempfile
+import time
+
+HERE = os.path.dirname(os.path.abspath(__file__))
+SQL_SERVER = os.path.join(HERE, "..", "data", "sql_server.py")
+CLASSES = os.path.join(HERE, "target", "classes")
+SQL_PORT = 7778
+
+
+def wait_for_port(port: int, timeout: float = 10.0):
+    deadline = time.monotonic() + timeout
+    while True:
+        try:
+            socket.create_connection(("127.0.0.1", port)).close()
+            return
+        except OSError:
+            if time.monotonic() > deadline:
+                raise
+            time.sleep(0.1)
+
+
+def port_open(port: int) -> bool:
+    try:
+        socket.create_connection(("127.0.0.1", port)).close()
+        return True
+    except OSError:
+        return False
+
+
+@contextlib.contextmanager
+def running_server(mode: str, port: int, properties: dict = None, classes: str = CLASSES):
+    """
+    Runs StompServer <port> <mode> with the given system properties (-Dkey=value) for the
+    duration of the with block, and yields its Popen so callers can look at its pid.
+    classes is the compiled tree to run, this checkout's target/classes unless another build
+    is being compared.
+    An SQL server that is already listening on 7778 is reused instead of starting another one.
+    """
+    if not os.path.isdir(classes):
+        sys.exit(f"{classes} does not exist, run `mvn compile` first")
+    flags = [f"-D{key}={value}" for key, value in (properties or {}).items()]
+    with tempfile.TemporaryDirectory() as workdir:
+        sql = None
+        if not port_open(SQL_PORT):
+            sql = subprocess.Popen(
+                [sys.executable, SQL_SERVER, str(SQL_PORT)],
+                cwd=workdir, stdout=subprocess.DEVNULL, stderr=subprocess.DEVNULL)
+        server = None
+        try:
+            wait_for_port(SQL_PORT)
+            log = open(os.path.join(workdir, "server.log"), "wb")
+            server = subprocess.Popen(
+                ["java", *flags, "-cp", classes, "bgu.spl.net.impl.stomp.StompServer", str(port), mode],
+                stdout=log, stderr=subprocess.STDOUT)
+            wait_for_port(port)
+            yield server
+        finally:
+            if server is not None:
+                server.terminate()
+                server.wait()
+                log.close()
+                if server.returncode not in (0, -15, 143):
+                    with open(os.path.join(workdir, "server.log"), "rb") as f:
+                        sys.stdout.write(f.read().decode(errors="replace"))
+            if sql is not None:
+                sql.terminate()
+                sql.wait()
+
+
+def rss_kb(pid: int) -> int:
+    with open(f"/proc/{pid}/status") as f:
+        for line in f:
+            if line.startswith("VmRSS:"):
+                return int(line.split()[1])
+    return 0
+
+
+def class_histogram(pid: int):
+    """
+    {class name: (instances, bytes)} of the objects that survive a full GC, with the sums under
+    "Total", or None if jcmd is not available.
+    """
+    try:
+        output = subprocess.run(["jcmd", str(pid), "GC.class_histogram"],
+                                capture_output=True, text=True, check=True).stdout
+    except (OSError, subprocess.CalledProcessError):
+        return None
+    histogram = {}
+    for match in re.finditer(r"^\s*(?:\d+:)?\s*(\d+)\s+(\d+)\s+(\S+)", output, re.M):
+        histogram[match.group(3)] = (int(match.group(1)), int(match.group(2)))
+    total = re.search(r"^Total\s+(\d+)\s+(\d+)", output, re.M)
+    histogram["Total"] = (int(total.group(1)), int(total.group(2)))
+    return histogram
+
+
+class StompClient:
+
+    def __init__(self, port: int, receive_buffer: int = 0):
+        self.sock = socket.socket(socket.AF_INET, socket.SOCK_STREAM)
+        if receive_buffer:
+            # Must be set before connect, otherwise the window is already advertised
+            self.sock.setsockopt(socket.SOL_SOCKET, socket.SO_RCVBUF, receive_buffer)
+        self.sock.connect(("127.0.0.1", port))
+        self.pending = b""
+
+    def send_frame(self, command: str, headers: dict = None, body: str = ""):
+        lines = [command] + [f"{key}:{value}" for key, value in (headers or {}).items()]
+        self.sock.sendall(("\n".join(lines) + "\n\n" + body + "\0").encode("utf-8"))
+
+    def recv_frame(self, timeout: float = 10.0):
+        """The next frame as (command, headers, body), or None if the server closed the connection."""
+        self.sock.settimeout(timeout)
+        while b"\0" not in self.pending:
+            chunk = self.sock.recv(1 << 20)
+            if not chunk:
+                return None
+            self.pending += chunk
+        raw, self.pending = self.pending.split(b"\0", 1)
+        head, _, body = raw.decode("utf-8").lstrip("\n").partition("\n\n")
+        command, *lines = head.split("\n")
+        headers = dict(line.split(":", 1) for line in lines if ":" in line)
+        return command, headers, body
+
+    def expect(self, command: str, timeout: float = 10.0):
+        frame = self.recv_frame(timeout)
+        if frame is None or frame[0] != command:
+            raise AssertionError(f"expected {command}, got {frame}")
+        return frame
+
+    def connect(self, login: str, passcode: str = "pw"):
+        self.send_frame("CONNECT", {"accept-version": "1.2", "host": "stomp.cs.bgu.ac.il",
+                                    "login": login, "passcode": passcode})
+        return self.recv_frame()
+
+    def subscribe(self, destination: str, sub_id: int, receipt: str = None):
+        headers = {"destination": destination, "id": sub_id}
+        if receipt:
+            headers["receipt"] = receipt
+        self.send_frame("SUBSCRIBE", headers)
+        if receipt:
+            self.expect("RECEIPT")
+
+    def unsubscribe(self, sub_id: int, receipt: str = None):
+        headers = {"id": sub_id}
+        if receipt:
+            headers["receipt"] = receipt
+        self.send_frame("UNSUBSCRIBE", headers)
+        if receipt:
+            self.expect("RECEIPT")
+
+    def publish(self, destination: str, body: str, receipt: str = None):
+        headers = {"destination": destination}
+        if receipt:
+            headers["receipt"] = receipt
+        self.send_frame("SEND", headers, body)
+
+    def disconnect(self, receipt: str = "bye"):
+        """Sends DISCONNECT and waits for its RECEIPT, skipping the MESSAGEs still on the way."""
+        self.send_frame("DISCONNECT", {"receipt": receipt})
+        frame = self.recv_frame()
+        while frame is not None and frame[0] == "MESSAGE":
+            frame = self.recv_frame()
+        if frame is None or frame[0] != "RECEIPT":
+            raise AssertionError(f"expected RECEIPT, got {frame}")
+        self.close()
+
+    def drain(self, quiet: float = 0.5) -> list:
+        """Every frame that arrives until the connection has been quiet for `quiet` seconds."""
+        frames = []
+        try:
+            while True:
+                frame = self.recv_frame(quiet)
+                if frame is None:
+                    break
+                frames.append(frame)
+        except socket.timeout:
+            pass
+        return frames
+
+    def close(self):
+        self.sock.close()